@@ -0,0 +1,59 @@
+/*
+ *  ChunkConsumer.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes;
+
+/**
+ * Receives the contents of a rope as a sequence of contiguous chunks,
+ * in order. Depending on how a leaf of the rope is stored, a chunk is
+ * handed over either as a range of a character array or as a range of
+ * a character sequence.
+ * <p>
+ * Chunks are views of the rope's internal storage (or of a scratch
+ * buffer) and are only valid for the duration of the call. A consumer
+ * must never modify a chunk array, nor retain it after returning.
+ *
+ * @author Amin Ahmad
+ * @see Rope#forEachChunk(ChunkConsumer)
+ */
+public interface ChunkConsumer {
+
+	/**
+	 * Accepts a chunk stored in a character array.
+	 * @param chunk the array holding the chunk.
+	 * @param offset the offset of the chunk in the array.
+	 * @param length the length of the chunk.
+	 * @return <code>true</code> to continue with the next chunk, or
+	 * <code>false</code> to stop.
+	 */
+	boolean accept(char[] chunk, int offset, int length);
+
+	/**
+	 * Accepts a chunk stored in a character sequence.
+	 * @param chunk the sequence holding the chunk.
+	 * @param offset the offset of the chunk in the sequence.
+	 * @param length the length of the chunk.
+	 * @return <code>true</code> to continue with the next chunk, or
+	 * <code>false</code> to stop.
+	 */
+	boolean accept(CharSequence chunk, int offset, int length);
+}
@@ -23,8 +23,10 @@
 package org.ahmadsoft.ropes;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -116,6 +118,54 @@ import java.util.regex.Pattern;
 	//@ ensures \result.length() == (length() - (end-start));
     Rope delete(int start, int end);
 
+	/**
+	 * Copies characters from this rope into the destination character
+	 * array. The first character to be copied is at index
+	 * <code>srcBegin</code>; the last character to be copied is at index
+	 * <code>srcEnd-1</code>. The characters are copied into the subarray
+	 * of <code>dst</code> starting at index <code>dstBegin</code>.
+	 * <p>
+	 * Unlike a loop over <code>charAt</code>, this method visits each
+	 * node of the rope at most once and copies out of flat ropes in bulk.
+	 * @param srcBegin index of the first character in the rope to copy.
+	 * @param srcEnd index after the last character in the rope to copy.
+	 * @param dst the destination array.
+	 * @param dstBegin the start offset in the destination array.
+	 * @throws IndexOutOfBoundsException if <code>srcBegin</code> is
+	 * negative, <code>srcBegin</code> is greater than <code>srcEnd</code>,
+	 * <code>srcEnd</code> is greater than the length of this rope, or the
+	 * destination range falls outside <code>dst</code>.
+	 */
+	//@ requires srcBegin > -1 && srcBegin <= srcEnd && srcEnd <= length();
+	void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin);
+
+	/**
+	 * Hands the contents of this rope to the specified consumer as a
+	 * sequence of contiguous chunks, in order. Each chunk is a slice of
+	 * the storage backing a leaf of this rope, so consumers can process
+	 * a rope at array speed instead of calling <code>charAt</code>.
+	 * @param consumer the chunk consumer.
+	 * @return <code>true</code> if every chunk was consumed, or
+	 * <code>false</code> if the consumer stopped the traversal.
+	 * @see #forEachChunk(int, int, ChunkConsumer)
+	 */
+	//@ requires consumer != null;
+	boolean forEachChunk(ChunkConsumer consumer);
+
+	/**
+	 * Hands a range of this rope to the specified consumer as a
+	 * sequence of contiguous chunks, in order.
+	 * @param start the start index, inclusive.
+	 * @param end the end index, exclusive.
+	 * @param consumer the chunk consumer.
+	 * @return <code>true</code> if every chunk was consumed, or
+	 * <code>false</code> if the consumer stopped the traversal.
+	 * @throws IndexOutOfBoundsException if the range is invalid.
+	 * @see #forEachChunk(ChunkConsumer)
+	 */
+	//@ requires start > -1 && start <= end && end <= length() && consumer != null;
+	boolean forEachChunk(int start, int end, ChunkConsumer consumer);
+
 	/**
 	 * Returns the index within this rope of the first occurrence of the
 	 * specified character. If a character with value <code>ch</code> occurs
@@ -189,6 +239,127 @@ import java.util.regex.Pattern;
     //@ ensures \result >= -1 && \result < length();
 	int indexOf(CharSequence sequence, int fromIndex);
 
+	/**
+	 * Returns the index within this rope of the first occurrence of the
+	 * specified compiled pattern. Searching with a compiled pattern skips
+	 * the preprocessing that <code>indexOf(CharSequence)</code> performs
+	 * on every call.
+	 * @param pattern the compiled pattern to find.
+	 * @return the index of the first occurrence of the pattern, or
+	 * -1 if the pattern does not occur.
+	 * @see #indexOf(RopePattern, int)
+	 */
+	//@ requires pattern != null;
+    //@ ensures \result >= -1 && \result < length();
+	int indexOf(RopePattern pattern);
+
+	/**
+	 * Returns the index within this rope of the first occurrence of the
+	 * specified compiled pattern, beginning at the specified index.
+	 * @param pattern the compiled pattern to find.
+	 * @param fromIndex the index to start searching from.
+	 * @return the index of the first occurrence of the pattern, or
+	 * -1 if the pattern does not occur.
+	 * @see RopePattern#compile(CharSequence)
+	 */
+	//@ requires pattern != null && fromIndex > -1 && fromIndex < length();
+    //@ ensures \result >= -1 && \result < length();
+	int indexOf(RopePattern pattern, int fromIndex);
+
+	/**
+	 * Returns the index within this rope of the last occurrence of the
+	 * specified character. The value returned is the largest <i>k</i>
+	 * such that:
+	 * <p>
+	 * <code>this.charAt(k) == ch</code>
+	 * <p>
+	 * is <code>true</code>. If no such character occurs in this string,
+	 * then <code>-1</code> is returned.
+	 * @param ch a character.
+	 * @return the index of the last occurrence of the character, or
+	 * <code>-1</code> if the character does not occur.
+	 */
+    //@ ensures \result >= -1 && \result < length();
+	int lastIndexOf(char ch);
+
+	/**
+	 * Returns the index within this rope of the last occurrence of the
+	 * specified character, searching backward starting at the specified
+	 * index. The value returned is the largest <i>k</i> such that:
+	 * <p>
+	 * <code>k &lt;= fromIndex && this.charAt(k) == ch</code>
+	 * <p>
+	 * is <code>true</code>. The time taken is proportional to the distance
+	 * searched, not to the length of the rope. If no such character occurs,
+	 * then <code>-1</code> is returned.
+	 * @param ch a character.
+	 * @param fromIndex the index to start searching backward from.
+	 * @return the index of the last occurrence of the character, or
+	 * <code>-1</code> if the character does not occur.
+	 */
+	//@ requires fromIndex > -1 && fromIndex < length();
+    //@ ensures \result >= -1 && \result <= fromIndex;
+	int lastIndexOf(char ch, int fromIndex);
+
+	/**
+	 * Returns the index within this rope of the last occurrence of the
+	 * specified string. The value returned is the largest <i>k</i> such
+	 * that:
+	 * <pre>
+	 *     this.startsWith(str, k)
+	 * </pre>
+	 * If no such <i>k</i> exists, then -1 is returned.
+	 * @param sequence the string to find.
+	 * @return the index of the last occurrence of the specified string, or
+	 * -1 if the specified string does not occur.
+	 */
+	//@ requires sequence != null;
+    //@ ensures \result >= -1 && \result < length();
+	int lastIndexOf(CharSequence sequence);
+
+	/**
+	 * Returns the index within this rope of the last occurrence of the
+	 * specified string, searching backward starting at the specified
+	 * index. The value returned is the largest <i>k</i> such that:
+	 * <pre>
+	 *     k <= fromIndex && this.startsWith(str, k)
+	 * </pre>
+	 * If no such <i>k</i> exists, then -1 is returned.
+	 * @param sequence the string to find.
+	 * @param fromIndex the index to start searching backward from.
+	 * @return the index of the last occurrence of the specified string, or
+	 * -1 if the specified string does not occur.
+	 */
+	//@ requires sequence != null && fromIndex > -1 && fromIndex < length();
+    //@ ensures \result >= -1 && \result <= fromIndex;
+	int lastIndexOf(CharSequence sequence, int fromIndex);
+
+	/**
+	 * Returns the index within this rope of the last occurrence of the
+	 * specified compiled pattern.
+	 * @param pattern the compiled pattern to find.
+	 * @return the index of the last occurrence of the pattern, or
+	 * -1 if the pattern does not occur.
+	 * @see #lastIndexOf(RopePattern, int)
+	 */
+	//@ requires pattern != null;
+    //@ ensures \result >= -1 && \result < length();
+	int lastIndexOf(RopePattern pattern);
+
+	/**
+	 * Returns the index within this rope of the last occurrence of the
+	 * specified compiled pattern, searching backward starting at the
+	 * specified index.
+	 * @param pattern the compiled pattern to find.
+	 * @param fromIndex the index to start searching backward from.
+	 * @return the index of the last occurrence of the pattern, or
+	 * -1 if the pattern does not occur.
+	 * @see RopePattern#compile(CharSequence)
+	 */
+	//@ requires pattern != null && fromIndex > -1 && fromIndex < length();
+    //@ ensures \result >= -1 && \result <= fromIndex;
+	int lastIndexOf(RopePattern pattern, int fromIndex);
+
 	/**
      * Creates a new rope by inserting the specified <code>CharSequence</code>
      * into this rope.
@@ -215,6 +386,24 @@ import java.util.regex.Pattern;
 	//@ requires start > -1 && start < length();
     Iterator<Character> iterator(int start);
 
+    /**
+     * Returns a cursor positioned at the start of this rope.
+     * @return a cursor positioned at the start of this rope.
+     * @see Rope#cursor(int)
+     */
+    RopeCursor cursor();
+
+    /**
+     * Returns a cursor positioned at the specified index. A cursor
+     * moves in both directions and returns primitive characters, so
+     * it should be preferred to an iterator when traversing large
+     * ropes.
+     * @param start the start position.
+     * @return a cursor positioned at the specified index.
+     */
+	//@ requires start > -1 && start <= length();
+    RopeCursor cursor(int start);
+
 	/**
 	 * Trims all whitespace as well as characters less than 0x20 from
 	 * the beginning of this string.
@@ -267,6 +456,17 @@ import java.util.regex.Pattern;
      */
     public Rope rebalance();
 
+    /**
+     * Rebalances the current rope, merging runs of short adjacent leaves
+     * into leaves backed by character arrays. A rope built from many small
+     * edits holds one leaf per edit; compacting it bounds the number of
+     * leaves by its length divided by the target leaf size, at the cost of
+     * copying the short leaves.
+     *
+     * @return a compacted rope.
+     */
+    public Rope compact();
+
     /**
      * Reverses this rope.
      * @return a reversed copy of this rope.
@@ -323,6 +523,18 @@ import java.util.regex.Pattern;
      * @param length the range length.
      */
     public void write(Writer out, int offset, int length) throws IOException;
+
+    /**
+     * Write this rope to an <code>OutputStream</code>, encoded in the
+     * specified charset. Parts of the rope that are stored already
+     * encoded in the charset, such as ropes built from UTF-8 bytes, are
+     * written without being decoded and re-encoded. Unmappable characters
+     * are replaced with the replacement bytes of the charset. The stream
+     * is neither flushed nor closed.
+     * @param out the output stream.
+     * @param charset the charset to encode with.
+     */
+    public void write(OutputStream out, Charset charset) throws IOException;
     
     /**
      * Increase the length of this rope to the specified length by prepending 
@@ -413,4 +625,135 @@ import java.util.regex.Pattern;
      * specified prefix and <code>false</code> otherwise.
      */
     public boolean endsWith(CharSequence suffix, int offset);
+
+    /**
+     * Returns the index of the first character at which this rope and
+     * the specified sequence differ. If one is a proper prefix of the
+     * other, the length of the shorter one is returned. When the sequence
+     * is a rope, subtrees shared by both ropes are skipped without being
+     * read.
+     * @param sequence the sequence to compare against.
+     * @return the index of the first mismatch, or <code>-1</code> if
+     * this rope and the sequence are equal.
+     * @see #commonPrefixLength(CharSequence)
+     */
+    //@ requires sequence != null;
+    //@ ensures \result >= -1 && \result <= length();
+    public int mismatch(CharSequence sequence);
+
+    /**
+     * Returns the length of the longest common prefix of this rope and
+     * the specified sequence.
+     * @param sequence the sequence to compare against.
+     * @return the length of the longest common prefix.
+     * @see #mismatch(CharSequence)
+     */
+    //@ requires sequence != null;
+    //@ ensures \result >= 0 && \result <= length();
+    public int commonPrefixLength(CharSequence sequence);
+
+    /**
+     * Returns the length of the longest common suffix of this rope and
+     * the specified sequence.
+     * @param sequence the sequence to compare against.
+     * @return the length of the longest common suffix.
+     */
+    //@ requires sequence != null;
+    //@ ensures \result >= 0 && \result <= length();
+    public int commonSuffixLength(CharSequence sequence);
+
+    /**
+     * Returns the number of lines in this rope. Lines are separated by
+     * <code>'\n'</code>, so a rope with <i>n</i> newline characters has
+     * <i>n + 1</i> lines; the empty rope has one, empty, line. Newline
+     * counts are cached in the rope, so this and the other line methods
+     * take logarithmic time once a rope has been indexed.
+     * @return the number of lines in this rope.
+     */
+    //@ ensures \result >= 1;
+    public int lineCount();
+
+    /**
+     * Returns the offset of the first character of the specified line.
+     * @param line the line number, counted from zero.
+     * @return the offset of the start of the line.
+     * @throws IndexOutOfBoundsException if the line is negative or not
+     * less than <code>lineCount()</code>.
+     */
+    //@ requires 0 <= line && line < lineCount();
+    //@ ensures \result >= 0 && \result <= length();
+    public int lineStartOffset(int line);
+
+    /**
+     * Returns the line containing the character at the specified offset.
+     * A newline character belongs to the line it terminates.
+     * @param offset the offset, between zero and the length of this rope.
+     * @return the line number, counted from zero.
+     * @throws IndexOutOfBoundsException if the offset is negative or
+     * greater than the length of this rope.
+     */
+    //@ requires 0 <= offset && offset <= length();
+    //@ ensures \result >= 0 && \result < lineCount();
+    public int lineOf(int offset);
+
+    /**
+     * Returns the specified line, without its terminating newline, as a
+     * subsequence of this rope.
+     * @param line the line number, counted from zero.
+     * @return the line.
+     * @throws IndexOutOfBoundsException if the line is negative or not
+     * less than <code>lineCount()</code>.
+     */
+    //@ requires 0 <= line && line < lineCount();
+    //@ ensures \result != null;
+    public Rope line(int line);
+
+    /**
+     * Returns the Unicode code point at the specified index. If the
+     * character at the index is a high surrogate followed by a low
+     * surrogate, the supplementary code point of the pair is returned;
+     * otherwise the character itself is returned.
+     * @param index the index of the code point.
+     * @return the code point at the index.
+     * @throws IndexOutOfBoundsException if the index is negative or not
+     * less than the length of this rope.
+     * @see Character#codePointAt(CharSequence, int)
+     */
+    //@ requires 0 <= index && index < length();
+    public int codePointAt(int index);
+
+    /**
+     * Returns the number of Unicode code points in the specified range of
+     * this rope. A surrogate pair counts as one code point, including a
+     * pair split between two leaves of the rope, and an unpaired
+     * surrogate counts as one code point. Surrogate pair counts are cached
+     * in the rope, so this takes logarithmic time once a rope has been
+     * indexed.
+     * @param beginIndex the start of the range, inclusive.
+     * @param endIndex the end of the range, exclusive.
+     * @return the number of code points in the range.
+     * @throws IndexOutOfBoundsException if the range is not a valid range
+     * of this rope.
+     * @see Character#codePointCount(CharSequence, int, int)
+     */
+    //@ requires 0 <= beginIndex && beginIndex <= endIndex && endIndex <= length();
+    //@ ensures \result >= 0 && \result <= endIndex - beginIndex;
+    public int codePointCount(int beginIndex, int endIndex);
+
+    /**
+     * Returns the index that is offset from the specified index by the
+     * specified number of code points, counting as
+     * <code>codePointCount</code> does.
+     * @param index the index to offset.
+     * @param codePointOffset the number of code points to move by, which
+     * may be negative.
+     * @return the offset index.
+     * @throws IndexOutOfBoundsException if the index is negative or
+     * greater than the length of this rope, or if there are fewer than
+     * <code>codePointOffset</code> code points in the direction moved.
+     * @see Character#offsetByCodePoints(CharSequence, int, int)
+     */
+    //@ requires 0 <= index && index <= length();
+    //@ ensures \result >= 0 && \result <= length();
+    public int offsetByCodePoints(int index, int codePointOffset);
 }
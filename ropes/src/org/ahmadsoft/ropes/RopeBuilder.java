@@ -22,22 +22,87 @@
  */
 package org.ahmadsoft.ropes;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.ahmadsoft.ropes.impl.BTreeRope;
+import org.ahmadsoft.ropes.impl.FlatByteArrayRope;
 import org.ahmadsoft.ropes.impl.FlatCharArrayRope;
 import org.ahmadsoft.ropes.impl.FlatCharSequenceRope;
+import org.ahmadsoft.ropes.impl.FlatUtf8Rope;
 
 /**
- * A factory for building ropes.
+ * A factory for building ropes. Each builder has a {@link RopePolicy};
+ * the ropes it builds keep the policy, and the concatenations,
+ * subsequences and rebalances of those ropes follow it. A rope built by
+ * concatenating ropes of different policies follows the policy of the
+ * first rope.
  * @author Amin Ahmad
  */
 public final class RopeBuilder {
 
+	private final RopePolicy policy;
+
+	/**
+	 * Constructs a builder with the default policy.
+	 */
+	public RopeBuilder() {
+		this(RopePolicy.DEFAULT);
+	}
+
+	/**
+	 * Constructs a builder with the specified policy.
+	 * @param policy the policy of the ropes built.
+	 * @throws NullPointerException if the policy is <code>null</code>.
+	 */
+	public RopeBuilder(final RopePolicy policy) {
+		if (policy == null)
+			throw new NullPointerException("policy");
+		this.policy = policy;
+	}
+
 	/**
-	 * Construct a rope from a character array.
+	 * Construct a rope from a character array. If every character is a
+	 * Latin-1 character, the rope stores one byte per character.
 	 * @param sequence a character array
 	 * @return a rope representing the underlying character array.
 	 */
 	public Rope build(final char[] sequence) {
-		return new FlatCharArrayRope(sequence);
+		if (FlatByteArrayRope.isLatin1(sequence, 0, sequence.length))
+			return new FlatByteArrayRope(sequence, 0, sequence.length, this.policy);
+		return new FlatCharArrayRope(sequence, 0, sequence.length, this.policy);
+	}
+
+	/**
+	 * Construct a rope from bytes encoded in the specified charset. UTF-8
+	 * bytes are kept encoded and decoded on demand, and Latin-1 bytes are
+	 * kept one byte per character, so that neither takes more memory than
+	 * the bytes themselves; either can be written back out in its charset
+	 * without re-encoding. Bytes in other charsets are decoded. Malformed
+	 * input is decoded with replacement characters.
+	 * @param bytes the encoded bytes.
+	 * @param charset the charset of the bytes.
+	 * @return a rope representing the decoded characters.
+	 * @see Rope#write(java.io.OutputStream, Charset)
+	 */
+	public Rope build(final byte[] bytes, final Charset charset) {
+		if (StandardCharsets.UTF_8.equals(charset))
+			return FlatUtf8Rope.build(ByteBuffer.wrap(bytes.clone()), this.policy);
+		if (StandardCharsets.ISO_8859_1.equals(charset))
+			return new FlatByteArrayRope(bytes, 0, bytes.length, this.policy);
+		return this.build(new String(bytes, charset));
 	}
 
 	/**
@@ -48,6 +113,106 @@ public final class RopeBuilder {
 	public Rope build(final CharSequence sequence) {
 		if (sequence instanceof Rope)
 			return (Rope) sequence;
-		return new FlatCharSequenceRope(sequence);
+		return new FlatCharSequenceRope(sequence, this.policy);
+	}
+
+	/**
+	 * Construct a rope stored as a B-tree of wide nodes. B-tree ropes stay
+	 * shallow however they are edited, which makes random access and
+	 * editing of very large ropes faster than with the default binary
+	 * concatenation tree. Ropes derived from a B-tree rope by appending,
+	 * inserting, deleting or taking subsequences are B-tree ropes too. The
+	 * leaves are sized by the leaf length of the builder's policy.
+	 * @param sequence the underlying character sequence.
+	 * @return a B-tree rope holding a copy of the specified characters.
+	 */
+	public Rope buildBTree(final CharSequence sequence) {
+		return BTreeRope.build(sequence, this.policy);
+	}
+
+	/**
+	 * Construct a rope from the contents of a file. A UTF-8 file is mapped
+	 * into memory rather than read: the rope is a balanced tree of leaves
+	 * over windows of the mapping, decoded on demand, and ropes derived
+	 * from it by editing share the unedited windows. Opening the file
+	 * scans it once to validate it and count its characters, without
+	 * copying it onto the heap. Files in other charsets are read with
+	 * {@link #read(ReadableByteChannel, Charset)}. The file must not be
+	 * modified while the rope is in use.
+	 * @param path the path of the file.
+	 * @param charset the charset of the file.
+	 * @return a rope representing the contents of the file.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public Rope map(final Path path, final Charset charset) throws IOException {
+		try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (StandardCharsets.UTF_8.equals(charset))
+				return FlatUtf8Rope.map(channel, this.policy);
+			return this.read(channel, charset);
+		}
+	}
+
+	/**
+	 * Returns the policy of the ropes built by this builder.
+	 * @return the policy.
+	 */
+	public RopePolicy getPolicy() {
+		return this.policy;
+	}
+
+	/**
+	 * Construct a rope from the characters read from a reader, until the
+	 * end of the stream. The characters are read into a buffer of the
+	 * leaf length of the policy, and each full buffer is appended
+	 * to the rope as a leaf, so the rope is balanced and ready for editing
+	 * as it is built and no allocation is larger than one leaf. The
+	 * reader is not closed.
+	 * @param in the reader.
+	 * @return a rope holding the characters read.
+	 * @throws IOException if the reader fails.
+	 */
+	public Rope read(final Reader in) throws IOException {
+		final char[] buffer = new char[this.policy.getLeafLength()];
+		Rope rope = this.build("");
+		for (int read=0; read >= 0; ) {
+			int n = 0;
+			while (n < buffer.length && (read = in.read(buffer, n, buffer.length - n)) >= 0)
+				n += read;
+			if (n == buffer.length)
+				rope = rope.append(this.build(buffer));
+			else if (n > 0)
+				rope = rope.append(this.build(Arrays.copyOf(buffer, n)));
+		}
+		return rope;
+	}
+
+	/**
+	 * Construct a rope from the bytes read from a stream, until the end of
+	 * the stream, decoded in the specified charset. Malformed input is
+	 * decoded with replacement characters. The stream is not closed.
+	 * @param in the input stream.
+	 * @param charset the charset of the bytes.
+	 * @return a rope holding the decoded characters.
+	 * @throws IOException if the stream fails.
+	 * @see #read(Reader)
+	 */
+	public Rope read(final InputStream in, final Charset charset) throws IOException {
+		return this.read(new InputStreamReader(in, charset));
+	}
+
+	/**
+	 * Construct a rope from the bytes read from a channel, until the end
+	 * of the stream, decoded in the specified charset. Malformed input is
+	 * decoded with replacement characters. The channel is not closed.
+	 * @param in the channel.
+	 * @param charset the charset of the bytes.
+	 * @return a rope holding the decoded characters.
+	 * @throws IOException if the channel fails.
+	 * @see #read(Reader)
+	 */
+	public Rope read(final ReadableByteChannel in, final Charset charset) throws IOException {
+		return this.read(Channels.newReader(in, charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE), -1));
 	}
 }
@@ -0,0 +1,90 @@
+/*
+ *  RopeCursor.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes;
+
+/**
+ * A bidirectional cursor over the characters of a rope. Unlike an
+ * <code>Iterator&lt;Character&gt;</code>, a cursor returns primitive
+ * <code>char</code> values, so traversing a rope with a cursor does
+ * not allocate.
+ * <p>
+ * A cursor is always positioned <em>between</em> two characters. Its
+ * position ranges from <code>0</code>, before the first character, to
+ * <code>length()</code>, after the last character.
+ * <code>nextChar</code> returns the character following the cursor
+ * and advances it; <code>prevChar</code> returns the character
+ * preceding the cursor and moves it back.
+ *
+ * @author Amin Ahmad
+ * @see Rope#cursor(int)
+ */
+public interface RopeCursor {
+
+	/**
+	 * Returns <code>true</code> if there is a character following the
+	 * cursor.
+	 * @return <code>true</code> if <code>nextChar</code> may be called.
+	 */
+	boolean hasNext();
+
+	/**
+	 * Returns <code>true</code> if there is a character preceding the
+	 * cursor.
+	 * @return <code>true</code> if <code>prevChar</code> may be called.
+	 */
+	boolean hasPrevious();
+
+	/**
+	 * Returns the character following the cursor and advances the
+	 * cursor by one position.
+	 * @return the next character.
+	 * @throws IndexOutOfBoundsException if the cursor is at the end of
+	 * the rope.
+	 */
+	char nextChar();
+
+	/**
+	 * Moves the cursor back by one position and returns the character
+	 * that it moved over.
+	 * @return the previous character.
+	 * @throws IndexOutOfBoundsException if the cursor is at the start of
+	 * the rope.
+	 */
+	char prevChar();
+
+	/**
+	 * Returns the current position of the cursor, which is also the
+	 * index of the character that the next call to <code>nextChar</code>
+	 * will return.
+	 * @return the position of the cursor.
+	 */
+	int position();
+
+	/**
+	 * Moves the cursor to the specified position.
+	 * @param position the new position, between <code>0</code> and the
+	 * length of the rope, inclusive.
+	 * @throws IndexOutOfBoundsException if the position is out of range.
+	 */
+	void seek(int position);
+}
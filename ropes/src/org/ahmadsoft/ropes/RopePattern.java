@@ -0,0 +1,288 @@
+/*
+ *  RopePattern.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes;
+
+import java.util.Arrays;
+
+/**
+ * A compiled string to search for. Compiling a pattern computes the
+ * Boyer-Moore-Horspool bad character table for the string once, so a
+ * pattern that is searched for repeatedly should be compiled once and
+ * reused:
+ * <pre>
+ * RopePattern p = RopePattern.compile("ERROR");
+ * for (Rope line: lines)
+ *     if (line.indexOf(p) != -1) ...
+ * </pre>
+ * Patterns consisting only of Latin-1 characters use a dense table
+ * indexed by character. Other patterns use a compact hash table keyed
+ * by the full character value, so characters from wider alphabets never
+ * alias one another and the search keeps its long shifts on CJK and
+ * mixed-script text. The table used by backward searches is built the
+ * first time a pattern is used with <code>lastIndexOf</code>.
+ * <p>
+ * Patterns are immutable and may be shared between threads.
+ *
+ * @author Amin Ahmad
+ * @see Rope#indexOf(RopePattern, int)
+ */
+public final class RopePattern {
+
+	/**
+	 * A bad character table. Tables for Latin-1 characters are dense;
+	 * tables for any other characters use open addressing.
+	 */
+	private static final class ShiftTable {
+
+		/** The shift for characters that do not occur. */
+		private final int length;
+		private final int[] denseShifts;
+		private final char[] sparseKeys;
+		private final int[] sparseShifts;
+
+		/**
+		 * Builds the table for searching forwards, in which a character's
+		 * shift is its distance from the end of the pattern, or for
+		 * searching backwards, in which it is its distance from the start.
+		 * The character the window is aligned on never contributes.
+		 */
+		ShiftTable(final char[] pattern, final boolean reverse) {
+			final int length = pattern.length;
+			this.length = length;
+			final int first = reverse ? 1: 0, last = reverse ? length: length-1;
+
+			boolean latin1 = true;
+			for (int j=first; j<last; ++j)
+				latin1 &= pattern[j] <= 0xFF;
+
+			if (latin1) {
+				this.denseShifts = new int[256];
+				Arrays.fill(this.denseShifts, length);
+				this.sparseKeys = null;
+				this.sparseShifts = null;
+			} else {
+				int capacity = 2;
+				while (capacity < 2 * length)
+					capacity <<= 1;
+				this.denseShifts = null;
+				this.sparseKeys = new char[capacity];
+				this.sparseShifts = new int[capacity];
+			}
+			// Walk towards the aligned character so that nearer
+			// occurrences overwrite further ones.
+			for (int i=0; i<last-first; ++i) {
+				final int j = reverse ? last-1-i: i;
+				final char c = pattern[j];
+				final int shift = reverse ? j: length - j - 1;
+				if (latin1) {
+					this.denseShifts[c] = shift;
+				} else {
+					final int mask = this.sparseKeys.length - 1;
+					int slot = ShiftTable.hash(c) & mask;
+					while (this.sparseShifts[slot] != 0 && this.sparseKeys[slot] != c)
+						slot = (slot + 1) & mask;
+					this.sparseKeys[slot] = c;
+					this.sparseShifts[slot] = shift;
+				}
+			}
+		}
+
+		private static int hash(final char c) {
+			return c ^ (c >>> 7);
+		}
+
+		/**
+		 * Returns the distance the search window may move when the
+		 * specified character is found under the aligned end of the window.
+		 */
+		int shift(final char c) {
+			if (this.denseShifts != null)
+				return c <= 0xFF ? this.denseShifts[c]: this.length;
+			final int mask = this.sparseKeys.length - 1;
+			for (int slot = ShiftTable.hash(c) & mask; this.sparseShifts[slot] != 0; slot = (slot + 1) & mask)
+				if (this.sparseKeys[slot] == c)
+					return this.sparseShifts[slot];
+			return this.length;
+		}
+	}
+
+	private final char[] pattern;
+	private final ShiftTable forward;
+	/** The table for backward searches, built on first use. */
+	private volatile ShiftTable reverse;
+
+	/**
+	 * Compiles the specified string into a pattern.
+	 * @param sequence the string to search for.
+	 * @return a compiled pattern.
+	 */
+	public static RopePattern compile(final CharSequence sequence) {
+		return new RopePattern(sequence);
+	}
+
+	private RopePattern(final CharSequence sequence) {
+		final int length = sequence.length();
+		this.pattern = new char[length];
+		for (int j=0; j<length; ++j)
+			this.pattern[j] = sequence.charAt(j);
+		this.forward = new ShiftTable(this.pattern, false);
+	}
+
+	private ShiftTable reverse() {
+		ShiftTable table = this.reverse;
+		if (table == null) {
+			table = new ShiftTable(this.pattern, true);
+			this.reverse = table;
+		}
+		return table;
+	}
+
+	/**
+	 * Returns the length of the string this pattern searches for.
+	 * @return the length of the pattern.
+	 */
+	public int length() {
+		return this.pattern.length;
+	}
+
+	/**
+	 * Returns the index within the specified text of the first
+	 * occurrence of this pattern that lies entirely within the specified
+	 * range.
+	 * @param text the text to search.
+	 * @param fromIndex the start of the range, inclusive.
+	 * @param toIndex the end of the range, exclusive.
+	 * @return the index of the first occurrence, or -1 if there is none.
+	 */
+	public int indexOf(final CharSequence text, final int fromIndex, final int toIndex) {
+		final int last = this.pattern.length - 1;
+		if (last < 0)
+			return -1;
+		final char lastChar = this.pattern[last];
+		for (int j=Math.max(fromIndex, 0)+last; j<toIndex;) {
+			final char c = text.charAt(j);
+			if (c == lastChar) {
+				int x=j-1, y=last-1;
+				while (y >= 0 && text.charAt(x) == this.pattern[y]) {
+					--x; --y;
+				}
+				if (y < 0)
+					return j - last;
+			}
+			j += this.forward.shift(c);
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index within the specified character array of the
+	 * first occurrence of this pattern that lies entirely within the
+	 * specified range.
+	 * @param text the text to search.
+	 * @param fromIndex the start of the range, inclusive.
+	 * @param toIndex the end of the range, exclusive.
+	 * @return the index of the first occurrence, or -1 if there is none.
+	 */
+	public int indexOf(final char[] text, final int fromIndex, final int toIndex) {
+		final int last = this.pattern.length - 1;
+		if (last < 0)
+			return -1;
+		final char lastChar = this.pattern[last];
+		for (int j=Math.max(fromIndex, 0)+last; j<toIndex;) {
+			final char c = text[j];
+			if (c == lastChar) {
+				int x=j-1, y=last-1;
+				while (y >= 0 && text[x] == this.pattern[y]) {
+					--x; --y;
+				}
+				if (y < 0)
+					return j - last;
+			}
+			j += this.forward.shift(c);
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index within the specified text of the last
+	 * occurrence of this pattern that lies entirely within the specified
+	 * range.
+	 * @param text the text to search.
+	 * @param fromIndex the start of the range, inclusive.
+	 * @param toIndex the end of the range, exclusive.
+	 * @return the index of the last occurrence, or -1 if there is none.
+	 */
+	public int lastIndexOf(final CharSequence text, final int fromIndex, final int toIndex) {
+		final int length = this.pattern.length;
+		if (length == 0)
+			return -1;
+		final ShiftTable reverse = this.reverse();
+		final char firstChar = this.pattern[0];
+		for (int j=toIndex-length; j>=Math.max(fromIndex, 0);) {
+			final char c = text.charAt(j);
+			if (c == firstChar) {
+				int y=1;
+				while (y < length && text.charAt(j+y) == this.pattern[y])
+					++y;
+				if (y == length)
+					return j;
+			}
+			j -= reverse.shift(c);
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index within the specified character array of the last
+	 * occurrence of this pattern that lies entirely within the specified
+	 * range.
+	 * @param text the text to search.
+	 * @param fromIndex the start of the range, inclusive.
+	 * @param toIndex the end of the range, exclusive.
+	 * @return the index of the last occurrence, or -1 if there is none.
+	 */
+	public int lastIndexOf(final char[] text, final int fromIndex, final int toIndex) {
+		final int length = this.pattern.length;
+		if (length == 0)
+			return -1;
+		final ShiftTable reverse = this.reverse();
+		final char firstChar = this.pattern[0];
+		for (int j=toIndex-length; j>=Math.max(fromIndex, 0);) {
+			final char c = text[j];
+			if (c == firstChar) {
+				int y=1;
+				while (y < length && text[j+y] == this.pattern[y])
+					++y;
+				if (y == length)
+					return j;
+			}
+			j -= reverse.shift(c);
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return new String(this.pattern);
+	}
+}
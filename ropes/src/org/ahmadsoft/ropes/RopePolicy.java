@@ -0,0 +1,261 @@
+/*
+ *  RopePolicy.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The thresholds that govern the shape of ropes: when short pieces are
+ * copied rather than shared, when a rope is rebalanced, and how large
+ * the leaves of a rebalanced rope are. A policy is immutable; the
+ * <code>with</code> methods return modified copies. A policy is given
+ * to a {@link RopeBuilder}; the ropes it builds keep the policy, and
+ * the ropes derived from them by editing follow it.
+ * <p>
+ * Presets are provided for common workloads:
+ * <ul>
+ * <li>{@link #DEFAULT}, the historical thresholds of this library;
+ * <li>{@link #EDITOR}, for ropes receiving many small edits;
+ * <li>{@link #LOG}, for ropes that are mostly appended to;
+ * <li>{@link #ANALYTICS}, for ropes that are built once and read often.
+ * </ul>
+ * @author Amin Ahmad
+ */
+public final class RopePolicy {
+
+	/**
+	 * The default policy, used by {@link Rope#BUILDER}.
+	 */
+	public static final RopePolicy DEFAULT = new RopePolicy(17, 16, 8, 96, 1024, false, null);
+
+	/**
+	 * A policy for ropes receiving many small edits, such as the buffer
+	 * of a text editor. Keystrokes are combined into larger leaves, small
+	 * deletions copy rather than pin their source, and deep ropes are
+	 * rebalanced early and in the background.
+	 */
+	public static final RopePolicy EDITOR = new RopePolicy(64, 64, 32, 48, 512, true, null);
+
+	/**
+	 * A policy for ropes that are mostly appended to, such as logs.
+	 * Appended lines are combined into leaves of up to 256 characters and
+	 * rebalancing produces large leaves.
+	 */
+	public static final RopePolicy LOG = new RopePolicy(256, 16, 8, 96, 8192, false, null);
+
+	/**
+	 * A policy for ropes that are built once and read often. Ropes are
+	 * kept shallow and rebalanced into large leaves for fast scanning.
+	 */
+	public static final RopePolicy ANALYTICS = new RopePolicy(17, 16, 8, 32, 4096, false, null);
+
+	private final int combineLength;
+	private final int arrayCopyLength;
+	private final int sequenceCopyLength;
+	private final int maxDepth;
+	private final int leafLength;
+	private final boolean backgroundRebalance;
+	private final Executor rebalanceExecutor;
+
+	private RopePolicy(final int combineLength, final int arrayCopyLength, final int sequenceCopyLength, final int maxDepth, final int leafLength, final boolean backgroundRebalance, final Executor rebalanceExecutor) {
+		if (combineLength < 0)
+			throw new IllegalArgumentException("Illegal combine length: " + combineLength);
+		if (arrayCopyLength < 0)
+			throw new IllegalArgumentException("Illegal array copy length: " + arrayCopyLength);
+		if (sequenceCopyLength < 0)
+			throw new IllegalArgumentException("Illegal sequence copy length: " + sequenceCopyLength);
+		if (maxDepth < 8 || maxDepth > 120)
+			throw new IllegalArgumentException("Illegal maximum depth: " + maxDepth);
+		if (leafLength < 16)
+			throw new IllegalArgumentException("Illegal leaf length: " + leafLength);
+		this.combineLength = combineLength;
+		this.arrayCopyLength = arrayCopyLength;
+		this.sequenceCopyLength = sequenceCopyLength;
+		this.maxDepth = maxDepth;
+		this.leafLength = leafLength;
+		this.backgroundRebalance = backgroundRebalance;
+		this.rebalanceExecutor = rebalanceExecutor;
+	}
+
+	/**
+	 * Returns the combine length. Adjacent leaves shorter than this in
+	 * total are combined into a single flat rope on concatenation.
+	 * @return the combine length.
+	 */
+	public int getCombineLength() {
+		return this.combineLength;
+	}
+
+	/**
+	 * Returns the array copy length. Subsequences of ropes backed by
+	 * character arrays that are shorter than this are copied rather than
+	 * shared with the original rope.
+	 * @return the array copy length.
+	 */
+	public int getArrayCopyLength() {
+		return this.arrayCopyLength;
+	}
+
+	/**
+	 * Returns the sequence copy length. Subsequences of ropes backed by
+	 * other character sequences that are shorter than this are copied
+	 * rather than shared with the original rope.
+	 * @return the sequence copy length.
+	 */
+	public int getSequenceCopyLength() {
+		return this.sequenceCopyLength;
+	}
+
+	/**
+	 * Returns the maximum depth. Concatenations deeper than this are
+	 * rebalanced automatically.
+	 * @return the maximum depth.
+	 */
+	public int getMaxDepth() {
+		return this.maxDepth;
+	}
+
+	/**
+	 * Returns the leaf length. Short leaves are coalesced into leaves of
+	 * up to this many characters when a rope is rebalanced or compacted.
+	 * B-tree ropes keep their leaves between half of this length and this
+	 * length as they are edited.
+	 * @return the leaf length.
+	 */
+	public int getLeafLength() {
+		return this.leafLength;
+	}
+
+	/**
+	 * Returns the executor that runs background rebalances. Unless one
+	 * was set, this is a single daemon thread shared by all policies.
+	 * @return the rebalance executor.
+	 */
+	public Executor getRebalanceExecutor() {
+		return this.rebalanceExecutor != null ? this.rebalanceExecutor: BackgroundRebalancer.EXECUTOR;
+	}
+
+	/**
+	 * Returns whether automatic rebalancing happens on a background
+	 * thread rather than during the edit that triggers it.
+	 * @return <code>true</code> if rebalancing happens in the background.
+	 */
+	public boolean isBackgroundRebalance() {
+		return this.backgroundRebalance;
+	}
+
+	/**
+	 * Returns a copy of this policy with the specified combine length.
+	 * @param combineLength the combine length.
+	 * @return a copy of this policy with the specified combine length.
+	 * @throws IllegalArgumentException if the length is negative.
+	 */
+	public RopePolicy withCombineLength(final int combineLength) {
+		return new RopePolicy(combineLength, this.arrayCopyLength, this.sequenceCopyLength, this.maxDepth, this.leafLength, this.backgroundRebalance, this.rebalanceExecutor);
+	}
+
+	/**
+	 * Returns a copy of this policy with the specified array copy length.
+	 * @param arrayCopyLength the array copy length.
+	 * @return a copy of this policy with the specified array copy length.
+	 * @throws IllegalArgumentException if the length is negative.
+	 */
+	public RopePolicy withArrayCopyLength(final int arrayCopyLength) {
+		return new RopePolicy(this.combineLength, arrayCopyLength, this.sequenceCopyLength, this.maxDepth, this.leafLength, this.backgroundRebalance, this.rebalanceExecutor);
+	}
+
+	/**
+	 * Returns a copy of this policy with the specified sequence copy length.
+	 * @param sequenceCopyLength the sequence copy length.
+	 * @return a copy of this policy with the specified sequence copy length.
+	 * @throws IllegalArgumentException if the length is negative.
+	 */
+	public RopePolicy withSequenceCopyLength(final int sequenceCopyLength) {
+		return new RopePolicy(this.combineLength, this.arrayCopyLength, sequenceCopyLength, this.maxDepth, this.leafLength, this.backgroundRebalance, this.rebalanceExecutor);
+	}
+
+	/**
+	 * Returns a copy of this policy with the specified maximum depth.
+	 * @param maxDepth the maximum depth.
+	 * @return a copy of this policy with the specified maximum depth.
+	 * @throws IllegalArgumentException if the depth is not between 8 and 120.
+	 */
+	public RopePolicy withMaxDepth(final int maxDepth) {
+		return new RopePolicy(this.combineLength, this.arrayCopyLength, this.sequenceCopyLength, maxDepth, this.leafLength, this.backgroundRebalance, this.rebalanceExecutor);
+	}
+
+	/**
+	 * Returns a copy of this policy with the specified leaf length.
+	 * @param leafLength the leaf length.
+	 * @return a copy of this policy with the specified leaf length.
+	 * @throws IllegalArgumentException if the length is less than 16.
+	 */
+	public RopePolicy withLeafLength(final int leafLength) {
+		return new RopePolicy(this.combineLength, this.arrayCopyLength, this.sequenceCopyLength, this.maxDepth, leafLength, this.backgroundRebalance, this.rebalanceExecutor);
+	}
+
+	/**
+	 * Returns a copy of this policy with background rebalancing enabled
+	 * or disabled.
+	 * @param backgroundRebalance whether to rebalance in the background.
+	 * @return a copy of this policy with the specified setting.
+	 */
+	public RopePolicy withBackgroundRebalance(final boolean backgroundRebalance) {
+		return new RopePolicy(this.combineLength, this.arrayCopyLength, this.sequenceCopyLength, this.maxDepth, this.leafLength, backgroundRebalance, this.rebalanceExecutor);
+	}
+
+	/**
+	 * Returns a copy of this policy whose background rebalances are run
+	 * by the specified executor.
+	 * @param rebalanceExecutor the executor.
+	 * @return a copy of this policy with the specified executor.
+	 * @throws NullPointerException if the executor is <code>null</code>.
+	 */
+	public RopePolicy withRebalanceExecutor(final Executor rebalanceExecutor) {
+		if (rebalanceExecutor == null)
+			throw new NullPointerException("rebalanceExecutor");
+		return new RopePolicy(this.combineLength, this.arrayCopyLength, this.sequenceCopyLength, this.maxDepth, this.leafLength, this.backgroundRebalance, rebalanceExecutor);
+	}
+
+	@Override
+	public String toString() {
+		return "RopePolicy(combineLength=" + this.combineLength
+			+ ", arrayCopyLength=" + this.arrayCopyLength
+			+ ", sequenceCopyLength=" + this.sequenceCopyLength
+			+ ", maxDepth=" + this.maxDepth
+			+ ", leafLength=" + this.leafLength
+			+ ", backgroundRebalance=" + this.backgroundRebalance + ")";
+	}
+
+	private static final class BackgroundRebalancer {
+		static final Executor EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "rope-rebalancer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ *  RopeSearcher.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled set of strings to search for together. A searcher finds
+ * every occurrence of every one of its needles in a single pass over a
+ * rope, reading the rope a leaf at a time, so tagging a rope with
+ * <i>k</i> keywords costs time proportional to the length of the rope
+ * plus the number of matches rather than <i>k</i> separate searches:
+ * <pre>
+ * RopeSearcher s = RopeSearcher.compile("ERROR", "WARN", "FATAL");
+ * for (RopeSearcher.Match m: s.findAll(rope))
+ *     tag(m.getNeedle(), m.getOffset());
+ * </pre>
+ * The searcher is an Aho-Corasick automaton. Matches are reported in
+ * order of the index at which they end; matches ending at the same
+ * index are reported longest first. Overlapping matches are all
+ * reported. Empty needles never match.
+ * <p>
+ * Searchers are immutable and may be shared between threads.
+ *
+ * @author Amin Ahmad
+ * @see RopePattern
+ */
+public final class RopeSearcher {
+
+	/**
+	 * Receives the matches found by a search, in order.
+	 */
+	public interface Listener {
+
+		/**
+		 * Accepts a match.
+		 * @param needle the index of the matching needle, in the order
+		 * the needles were given to <code>compile</code>.
+		 * @param offset the index in the rope at which the match starts.
+		 * @return <code>true</code> to continue searching, or
+		 * <code>false</code> to stop.
+		 */
+		boolean match(int needle, int offset);
+	}
+
+	/**
+	 * An occurrence of one of the needles of a searcher.
+	 */
+	public static final class Match {
+
+		private final int needle;
+		private final int offset;
+		private final int length;
+
+		Match(final int needle, final int offset, final int length) {
+			this.needle = needle;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Returns the index of the matching needle.
+		 * @return the index of the matching needle.
+		 */
+		public int getNeedle() {
+			return this.needle;
+		}
+
+		/**
+		 * Returns the index in the rope at which the match starts.
+		 * @return the start of the match.
+		 */
+		public int getOffset() {
+			return this.offset;
+		}
+
+		/**
+		 * Returns the length of the match.
+		 * @return the length of the match.
+		 */
+		public int getLength() {
+			return this.length;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof Match))
+				return false;
+			final Match m = (Match) other;
+			return this.needle == m.needle && this.offset == m.offset && this.length == m.length;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * this.needle + this.offset;
+		}
+
+		@Override
+		public String toString() {
+			return this.needle + "@" + this.offset;
+		}
+	}
+
+	private static final int[] NO_OUTPUT = new int[0];
+	private static final char[] NO_KEYS = new char[0];
+
+	private final int[] needleLength;
+	/** The characters leading out of each state, sorted. */
+	private final char[][] keys;
+	/** The state reached by each of the characters in <code>keys</code>. */
+	private final int[][] targets;
+	/** The transitions out of the root for Latin-1 characters. */
+	private final int[] root;
+	private final int[] failure;
+	/** The needles ending at each state. */
+	private final int[][] output;
+	/** The nearest state on the failure chain with an output, or -1. */
+	private final int[] outputLink;
+
+	/**
+	 * Compiles the specified needles into a searcher.
+	 * @param needles the strings to search for.
+	 * @return a compiled searcher.
+	 */
+	public static RopeSearcher compile(final CharSequence... needles) {
+		return new RopeSearcher(Arrays.asList(needles));
+	}
+
+	/**
+	 * Compiles the specified needles into a searcher.
+	 * @param needles the strings to search for.
+	 * @return a compiled searcher.
+	 */
+	public static RopeSearcher compile(final List<? extends CharSequence> needles) {
+		return new RopeSearcher(needles);
+	}
+
+	private RopeSearcher(final List<? extends CharSequence> needles) {
+		this.needleLength = new int[needles.size()];
+
+		// step 1. build the trie.
+		final List<char[]> keys = new ArrayList<char[]>();
+		final List<int[]> targets = new ArrayList<int[]>();
+		final List<int[]> output = new ArrayList<int[]>();
+		keys.add(RopeSearcher.NO_KEYS);
+		targets.add(RopeSearcher.NO_OUTPUT);
+		output.add(RopeSearcher.NO_OUTPUT);
+		for (int n=0; n<needles.size(); ++n) {
+			final CharSequence needle = needles.get(n);
+			this.needleLength[n] = needle.length();
+			if (needle.length() == 0)
+				continue;
+			int state = 0;
+			for (int j=0; j<needle.length(); ++j) {
+				final char c = needle.charAt(j);
+				final char[] k = keys.get(state);
+				final int slot = Arrays.binarySearch(k, c);
+				if (slot >= 0) {
+					state = targets.get(state)[slot];
+					continue;
+				}
+				final int next = keys.size();
+				keys.add(RopeSearcher.NO_KEYS);
+				targets.add(RopeSearcher.NO_OUTPUT);
+				output.add(RopeSearcher.NO_OUTPUT);
+				keys.set(state, RopeSearcher.insert(k, -slot - 1, c));
+				targets.set(state, RopeSearcher.insert(targets.get(state), -slot - 1, next));
+				state = next;
+			}
+			output.set(state, RopeSearcher.insert(output.get(state), output.get(state).length, n));
+		}
+		final int states = keys.size();
+		this.keys = keys.toArray(new char[states][]);
+		this.targets = targets.toArray(new int[states][]);
+		this.output = output.toArray(new int[states][]);
+
+		this.root = new int[256];
+		for (int j=0; j<this.keys[0].length && this.keys[0][j] < 256; ++j)
+			this.root[this.keys[0][j]] = this.targets[0][j];
+
+		// step 2. compute failure links breadth first.
+		this.failure = new int[states];
+		this.outputLink = new int[states];
+		this.outputLink[0] = -1;
+		final int[] queue = new int[states];
+		int head = 0, tail = 0;
+		for (final int s: this.targets[0])
+			queue[tail++] = s;
+		while (head < tail) {
+			final int s = queue[head++];
+			final int f = this.failure[s];
+			this.outputLink[s] = this.output[f].length > 0 ? f: this.outputLink[f];
+			for (int j=0; j<this.keys[s].length; ++j) {
+				final int t = this.targets[s][j];
+				this.failure[t] = this.next(f, this.keys[s][j]);
+				queue[tail++] = t;
+			}
+		}
+	}
+
+	private static char[] insert(final char[] array, final int index, final char value) {
+		final char[] result = new char[array.length + 1];
+		System.arraycopy(array, 0, result, 0, index);
+		result[index] = value;
+		System.arraycopy(array, index, result, index + 1, array.length - index);
+		return result;
+	}
+
+	private static int[] insert(final int[] array, final int index, final int value) {
+		final int[] result = new int[array.length + 1];
+		System.arraycopy(array, 0, result, 0, index);
+		result[index] = value;
+		System.arraycopy(array, index, result, index + 1, array.length - index);
+		return result;
+	}
+
+	/**
+	 * Returns the state reached from the specified state on the
+	 * specified character, following failure links as necessary.
+	 */
+	private int next(int state, final char c) {
+		while (state != 0) {
+			final int slot = Arrays.binarySearch(this.keys[state], c);
+			if (slot >= 0)
+				return this.targets[state][slot];
+			state = this.failure[state];
+		}
+		if (c < 256)
+			return this.root[c];
+		final int slot = Arrays.binarySearch(this.keys[0], c);
+		return slot >= 0 ? this.targets[0][slot]: 0;
+	}
+
+	/**
+	 * Returns the number of needles in this searcher.
+	 * @return the number of needles.
+	 */
+	public int size() {
+		return this.needleLength.length;
+	}
+
+	/**
+	 * Searches the specified rope, reporting every match to the
+	 * specified listener.
+	 * @param rope the rope to search.
+	 * @param listener the listener to report matches to.
+	 * @return <code>true</code> if the whole rope was searched, or
+	 * <code>false</code> if the listener stopped the search.
+	 */
+	public boolean search(final Rope rope, final Listener listener) {
+		return this.search(rope, 0, rope.length(), listener);
+	}
+
+	/**
+	 * Searches the specified range of a rope, reporting every match that
+	 * lies entirely within the range to the specified listener.
+	 * @param rope the rope to search.
+	 * @param start the start of the range, inclusive.
+	 * @param end the end of the range, exclusive.
+	 * @param listener the listener to report matches to.
+	 * @return <code>true</code> if the whole range was searched, or
+	 * <code>false</code> if the listener stopped the search.
+	 */
+	public boolean search(final Rope rope, final int start, final int end, final Listener listener) {
+		return rope.forEachChunk(start, end, new ChunkConsumer() {
+			int state = 0;
+			int position = start;
+
+			public boolean accept(final char[] chunk, final int offset, final int length) {
+				for (int j=offset; j<offset + length; ++j)
+					if (!this.step(chunk[j]))
+						return false;
+				return true;
+			}
+
+			public boolean accept(final CharSequence chunk, final int offset, final int length) {
+				for (int j=offset; j<offset + length; ++j)
+					if (!this.step(chunk.charAt(j)))
+						return false;
+				return true;
+			}
+
+			private boolean step(final char c) {
+				this.state = RopeSearcher.this.next(this.state, c);
+				++this.position;
+				for (int s = this.state; s > 0; s = RopeSearcher.this.outputLink[s])
+					for (final int n: RopeSearcher.this.output[s])
+						if (!listener.match(n, this.position - RopeSearcher.this.needleLength[n]))
+							return false;
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Returns every match in the specified rope.
+	 * @param rope the rope to search.
+	 * @return the matches, in the order described above.
+	 */
+	public List<Match> findAll(final Rope rope) {
+		final List<Match> matches = new ArrayList<Match>();
+		this.search(rope, new Listener() {
+			public boolean match(final int needle, final int offset) {
+				matches.add(new Match(needle, offset, RopeSearcher.this.needleLength[needle]));
+				return true;
+			}
+		});
+		return matches;
+	}
+}
@@ -24,13 +24,21 @@ package org.ahmadsoft.ropes.impl;
 
 import java.io.IOException;
 import java.io.ObjectStreamException;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
+import org.ahmadsoft.ropes.ChunkConsumer;
 import org.ahmadsoft.ropes.Rope;
+import org.ahmadsoft.ropes.RopeCursor;
+import org.ahmadsoft.ropes.RopePattern;
+import org.ahmadsoft.ropes.RopePolicy;
 
 /**
  * Abstract base class for ropes that implements many of the common operations.
@@ -41,29 +49,83 @@ public abstract class AbstractRope implements Rope {
 	protected int hashCode = 0;
 
 	public Rope append(final char c) {
-		return RopeUtilities.INSTANCE.concatenate(this, Rope.BUILDER.build(String.valueOf(c)));
+		return RopeUtilities.INSTANCE.concatenate(this, RopeUtilities.INSTANCE.build(String.valueOf(c), this.getPolicy()));
 	}
 
 	public Rope append(final CharSequence suffix) {
-		return RopeUtilities.INSTANCE.concatenate(this, Rope.BUILDER.build(suffix));
+		return RopeUtilities.INSTANCE.concatenate(this, RopeUtilities.INSTANCE.build(suffix, this.getPolicy()));
 	}
 
 	public Rope append(final CharSequence csq, final int start, final int end) {
-		return RopeUtilities.INSTANCE.concatenate(this, Rope.BUILDER.build(csq).subSequence(start, end));
+		return RopeUtilities.INSTANCE.concatenate(this, RopeUtilities.INSTANCE.build(csq, this.getPolicy()).subSequence(start, end));
+	}
+
+	/**
+	 * Returns a stream of the characters in this rope. The stream is
+	 * backed by a spliterator that splits along the structure of the
+	 * rope, so <code>chars().parallel()</code> scales with the number
+	 * of available cores.
+	 */
+	@Override
+	public IntStream chars() {
+		return StreamSupport.intStream(new RopeSpliterator(this, 0, this.length()), false);
+	}
+
+	public int codePointAt(final int index) {
+		final char high = this.charAt(index);
+		if (Character.isHighSurrogate(high) && index + 1 < this.length()) {
+			final char low = this.charAt(index + 1);
+			if (Character.isLowSurrogate(low))
+				return Character.toCodePoint(high, low);
+		}
+		return high;
+	}
+
+	public int codePointCount(final int beginIndex, final int endIndex) {
+		if (beginIndex < 0 || endIndex > this.length() || beginIndex > endIndex)
+			throw new IndexOutOfBoundsException("Illegal range (" + beginIndex + "," + endIndex + ")");
+		if (beginIndex == endIndex)
+			return 0;
+		// a pair split by beginIndex contributes its low surrogate.
+		return this.codePointsBefore(endIndex) - this.codePointsBefore(beginIndex)
+			+ (this.isSurrogatePair(beginIndex - 1) ? 1: 0);
+	}
+
+	/**
+	 * Returns the largest offset such that there are at most the
+	 * specified number of code points before it, counting only surrogate
+	 * pairs that lie entirely before the offset as one code point.
+	 * @param codePoints the number of code points.
+	 * @return the offset.
+	 */
+	int codePointOffset(final int codePoints) {
+		int lo = 0, hi = this.length();
+		while (lo < hi) {
+			final int mid = (lo + hi + 1) >>> 1;
+			if (mid - this.surrogatePairsBefore(mid) <= codePoints)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	private int codePointsBefore(final int offset) {
+		return offset - this.surrogatePairsBefore(offset);
 	}
 
 	public int compareTo(final CharSequence sequence) {
 		final int compareTill = Math.min(sequence.length(), this.length());
-		final Iterator<Character> i = this.iterator();
-		for (int j=0; j<compareTill; ++j) {
-			final char x = i.next();
-			final char y = sequence.charAt(j);
-			if (x != y)
-				return x - y;
-		}
+		final int mismatch = RopeUtilities.INSTANCE.mismatch(this, 0, Rope.BUILDER.build(sequence), 0, compareTill);
+		if (mismatch >= 0)
+			return this.charAt(mismatch) - sequence.charAt(mismatch);
 		return this.length() - sequence.length();
 	}
 
+	public RopeCursor cursor() {
+		return this.cursor(0);
+	}
+
 	public Rope delete(final int start, final int end) {
 		if (start == end)
 			return this;
@@ -76,26 +138,49 @@ public abstract class AbstractRope implements Rope {
 	 */
 	public abstract byte depth();
 
+	/**
+	 * Returns the policy that governs the shape of this rope and of the
+	 * ropes derived from it: the policy of the builder that built its
+	 * first leaf.
+	 * @return the policy of this rope.
+	 */
+	public abstract RopePolicy getPolicy();
+
 	@Override
 	public boolean equals(final Object other) {
+		if (this == other)
+			return true;
 		if (other instanceof Rope) {
 			final Rope rope = (Rope) other;
-			if (rope.hashCode() != this.hashCode() || rope.length() != this.length())
+			if (rope.length() != this.length())
 				return false;
-			final Iterator<Character> i1 = this.iterator();
-			final Iterator<Character> i2 = rope.iterator();
-
-			while (i1.hasNext()) {
-				final char a = i1.next();
-				final char b = i2.next();
-				if (a != b)
+			// only compare hash codes that are already known; computing
+			// one costs as much as comparing the ropes.
+			if (this.hashCode != 0 && rope instanceof AbstractRope) {
+				final int hashCode = ((AbstractRope) rope).hashCode;
+				if (hashCode != 0 && hashCode != this.hashCode)
 					return false;
 			}
-			return true;
+			return RopeUtilities.INSTANCE.mismatch(this, 0, rope, 0, this.length()) < 0;
 		}
 		return false;
 	}
 
+	/**
+	 * Returns the bytes encoding this rope in the specified charset, if
+	 * this rope is stored that way, or <code>null</code> otherwise. This
+	 * implementation returns <code>null</code>.
+	 * @param charset the charset.
+	 * @return the encoded bytes, or <code>null</code>.
+	 */
+	ByteBuffer encoded(final Charset charset) {
+		return null;
+	}
+
+	public boolean forEachChunk(final ChunkConsumer consumer) {
+		return this.forEachChunk(0, this.length(), consumer);
+	}
+
 	/**
 	 * A utility method that returns an instance of this rope optimized
 	 * for sequential access.
@@ -105,28 +190,39 @@ public abstract class AbstractRope implements Rope {
 		return this;
 	}
 
+	/**
+	 * Returns a hash code for this rope. The hash code covers every
+	 * character and equals the hash code of a <code>String</code> with
+	 * the same contents. It is computed once and cached; concatenated
+	 * ropes compose the cached hash codes of their children, so hashing
+	 * a new concatenation of hashed ropes is cheap.
+	 * @return a hash code for this rope.
+	 */
 	@Override
 	public int hashCode() {
-		if (this.hashCode == 0 && this.length() > 0) {
-			if (this.length() < 6) {
-				for (final char c: this)
-					this.hashCode = 31 * this.hashCode + c;
-			} else {
-				final Iterator<Character> i = this.iterator();
-				for (int j=0;j<5; ++j)
-					this.hashCode = 31 * this.hashCode + i.next();
-				this.hashCode = 31 * this.hashCode + this.charAt(this.length() - 1);
-			}
-		}
+		if (this.hashCode == 0 && this.length() > 0)
+			this.hashCode = this.hash(0, this.length());
 		return this.hashCode;
 	}
 
+	/**
+	 * Returns the hash code of the specified range of this rope,
+	 * computed as by <code>String.hashCode</code>.
+	 * @param start the start of the range, inclusive.
+	 * @param end the end of the range, exclusive.
+	 * @return the hash code of the range.
+	 */
+	int hash(final int start, final int end) {
+		int hash = 0;
+		for (final RopeCursor i=this.cursor(start); i.position() < end; )
+			hash = 31 * hash + i.nextChar();
+		return hash;
+	}
+
 	public int indexOf(final char ch) {
-		int index = -1;
-		for (final char c: this) {
-			++index;
-			if (c == ch)
-				return index;
+		for (final RopeCursor i=this.cursor(); i.hasNext(); ) {
+			if (i.nextChar() == ch)
+				return i.position() - 1;
 		}
 		return -1;
 	}
@@ -141,12 +237,7 @@ public abstract class AbstractRope implements Rope {
     	if (offset + prefix.length() > this.length())
     		return false;
     	
-    	int x=0;
-    	for (Iterator<Character> i=this.iterator(offset); i.hasNext() && x < prefix.length(); ) {
-    		if (i.next().charValue() != prefix.charAt(x++))
-    			return false;
-    	}
-    	return true;
+    	return RopeUtilities.INSTANCE.mismatch(this, offset, Rope.BUILDER.build(prefix), 0, prefix.length()) < 0;
     }
     
     public boolean endsWith(CharSequence suffix) {
@@ -157,14 +248,32 @@ public abstract class AbstractRope implements Rope {
     	return startsWith(suffix, length() - suffix.length() - offset);
     }
 
+	public int mismatch(final CharSequence sequence) {
+		final int length = Math.min(this.length(), sequence.length());
+		final int mismatch = RopeUtilities.INSTANCE.mismatch(this, 0, Rope.BUILDER.build(sequence), 0, length);
+		if (mismatch >= 0)
+			return mismatch;
+		return this.length() == sequence.length() ? -1: length;
+	}
+
+	public int commonPrefixLength(final CharSequence sequence) {
+		final int mismatch = this.mismatch(sequence);
+		return mismatch < 0 ? this.length(): mismatch;
+	}
+
+	public int commonSuffixLength(final CharSequence sequence) {
+		final int length = Math.min(this.length(), sequence.length());
+		final int mismatch = RopeUtilities.INSTANCE.lastMismatch(this, this.length() - length,
+			Rope.BUILDER.build(sequence), sequence.length() - length, length);
+		return mismatch < 0 ? length: length - mismatch - 1;
+	}
+
 	public int indexOf(final char ch, final int fromIndex) {
 		if (fromIndex < 0 || fromIndex >= this.length())
 			throw new IndexOutOfBoundsException("Rope index out of range: " + fromIndex);
-		int index = fromIndex - 1;
-		for (final Iterator<Character> i=this.iterator(fromIndex); i.hasNext(); ) {
-			++index;
-			if (i.next().charValue() == ch)
-				return index;
+		for (final RopeCursor i=this.cursor(fromIndex); i.hasNext(); ) {
+			if (i.nextChar() == ch)
+				return i.position() - 1;
 		}
 		return -1;
 	}
@@ -174,11 +283,6 @@ public abstract class AbstractRope implements Rope {
 	}
 
 	public int indexOf(final CharSequence sequence, final int fromIndex) {
-		final CharSequence me = this.getForSequentialAccess();
-
-		// Implementation of Boyer-Moore-Horspool algorithm with
-		// special support for unicode.
-
 		// step 0. sanity check.
 		final int length = sequence.length();
 		if (length == 0)
@@ -186,37 +290,214 @@ public abstract class AbstractRope implements Rope {
 		if (length == 1)
 			return this.indexOf(sequence.charAt(0), fromIndex);
 
-		final int[] bcs = new int[256]; // bad character shift
-		Arrays.fill(bcs, length);
+		return this.indexOf(RopePattern.compile(sequence), fromIndex);
+	}
+
+	public int indexOf(final RopePattern pattern) {
+		return this.indexOf(pattern, 0);
+	}
+
+	public int indexOf(final RopePattern pattern, final int fromIndex) {
+		if (pattern.length() == 0)
+			return -1;
+		if (this.length() - fromIndex >= RopeUtilities.PARALLEL_SEARCH_THRESHOLD)
+			return IndexOfTask.indexOf(this, pattern, fromIndex);
+		return this.indexOf(pattern, fromIndex, this.length());
+	}
+
+	/**
+	 * Returns the index of the first occurrence of the specified pattern
+	 * that lies entirely within the specified range.
+	 * @param pattern the pattern to find.
+	 * @param fromIndex the start of the range, inclusive.
+	 * @param toIndex the end of the range, exclusive.
+	 * @return the index of the occurrence, or -1 if there is none.
+	 */
+	int indexOf(final RopePattern pattern, final int fromIndex, final int toIndex) {
+		return pattern.indexOf(this.getForSequentialAccess(), fromIndex, toIndex);
+	}
+
+	public int lastIndexOf(final char ch) {
+		if (this.length() == 0)
+			return -1;
+		return this.lastIndexOf(ch, this.length() - 1);
+	}
 
-		// step 1. preprocessing.
-		for (int j=0; j<length-1; ++j) {
-			final char c = sequence.charAt(j);
-			final int l = (c & 0xFF);
-			bcs[l] = Math.min(length - j - 1, bcs[l]);
+	public int lastIndexOf(final char ch, final int fromIndex) {
+		if (fromIndex < 0 || fromIndex >= this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + fromIndex);
+		for (final RopeCursor i=this.cursor(fromIndex + 1); i.hasPrevious(); ) {
+			if (i.prevChar() == ch)
+				return i.position();
 		}
+		return -1;
+	}
 
-		// step 2. search.
-		for (int j=fromIndex+length-1; j<this.length();) {
-			int x=j, y=length-1;
-			while (true) {
-				final char c = me.charAt(x);
-				if (sequence.charAt(y) != c) {
-					j += bcs[(me.charAt(j) & 0xFF)];
-					break;
-				}
-				if (y == 0)
-					return x;
-				--x; --y;
+	public int lastIndexOf(final CharSequence sequence) {
+		if (this.length() == 0)
+			return -1;
+		return this.lastIndexOf(sequence, this.length() - 1);
+	}
+
+	public int lastIndexOf(final CharSequence sequence, final int fromIndex) {
+		final int length = sequence.length();
+		if (length == 0)
+			return -1;
+		if (length == 1)
+			return this.lastIndexOf(sequence.charAt(0), fromIndex);
+
+		return this.lastIndexOf(RopePattern.compile(sequence), fromIndex);
+	}
+
+	public int lastIndexOf(final RopePattern pattern) {
+		if (this.length() == 0)
+			return -1;
+		return this.lastIndexOf(pattern, this.length() - 1);
+	}
+
+	public int lastIndexOf(final RopePattern pattern, final int fromIndex) {
+		if (fromIndex < 0 || fromIndex >= this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + fromIndex);
+		if (pattern.length() == 0)
+			return -1;
+		final long end = Math.min((long) fromIndex + pattern.length(), this.length());
+		return this.lastIndexOf(pattern, 0, (int) end);
+	}
+
+	/**
+	 * Returns the index of the last occurrence of the specified pattern
+	 * that lies entirely within the specified range. The range is
+	 * searched from its end, so the time taken is proportional to the
+	 * distance from the end of the range to the occurrence.
+	 * @param pattern the pattern to find.
+	 * @param fromIndex the start of the range, inclusive.
+	 * @param toIndex the end of the range, exclusive.
+	 * @return the index of the occurrence, or -1 if there is none.
+	 */
+	int lastIndexOf(final RopePattern pattern, final int fromIndex, final int toIndex) {
+		return pattern.lastIndexOf(this.getForSequentialAccess(), fromIndex, toIndex);
+	}
+
+	public Rope line(final int line) {
+		final int start = this.lineStartOffset(line);
+		final int end = (line + 1 < this.lineCount() ? this.newlineOffset(line): this.length());
+		return this.subSequence(start, end);
+	}
+
+	public int lineCount() {
+		return this.newlineCount() + 1;
+	}
+
+	public int lineOf(final int offset) {
+		if (offset < 0 || offset > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + offset);
+		return this.newlinesBefore(offset);
+	}
+
+	public int lineStartOffset(final int line) {
+		if (line < 0 || line >= this.lineCount())
+			throw new IndexOutOfBoundsException("Line out of range: " + line);
+		return (line == 0 ? 0: this.newlineOffset(line - 1) + 1);
+	}
+
+	/**
+	 * Returns the offsets of the high surrogates in this rope that are
+	 * followed by a low surrogate, in increasing order. This
+	 * implementation scans the rope on every call; leaves cache the
+	 * result, and composite ropes answer the other surrogate pair queries
+	 * from their children instead.
+	 * @return the offsets of the surrogate pairs in this rope.
+	 */
+	int[] surrogatePairs() {
+		int[] pairs = new int[16];
+		int count = 0;
+		boolean high = false;
+		for (final RopeCursor i=this.cursor(); i.hasNext(); ) {
+			final char c = i.nextChar();
+			if (high && Character.isLowSurrogate(c)) {
+				if (count == pairs.length)
+					pairs = Arrays.copyOf(pairs, count * 2);
+				pairs[count++] = i.position() - 2;
 			}
+			high = Character.isHighSurrogate(c);
+		}
+		return Arrays.copyOf(pairs, count);
+	}
 
+	/**
+	 * Returns the number of surrogate pairs in this rope.
+	 * @return the number of surrogate pairs.
+	 */
+	int surrogatePairCount() {
+		return this.surrogatePairs().length;
+	}
+
+	/**
+	 * Returns the number of surrogate pairs that lie entirely before the
+	 * specified offset.
+	 * @param offset the offset.
+	 * @return the number of surrogate pairs before the offset.
+	 */
+	int surrogatePairsBefore(final int offset) {
+		final int index = Arrays.binarySearch(this.surrogatePairs(), offset - 1);
+		return (index >= 0 ? index: -index - 1);
+	}
+
+	/**
+	 * Returns the offsets of the newline characters in this rope, in
+	 * increasing order. This implementation scans the rope on every call;
+	 * flat ropes cache the result, and composite ropes answer the other
+	 * newline queries from their children instead.
+	 * @return the offsets of the newlines in this rope.
+	 */
+	int[] newlines() {
+		int[] newlines = new int[16];
+		int count = 0;
+		for (final RopeCursor i=this.cursor(); i.hasNext(); ) {
+			if (i.nextChar() == '\n') {
+				if (count == newlines.length)
+					newlines = Arrays.copyOf(newlines, count * 2);
+				newlines[count++] = i.position() - 1;
+			}
 		}
+		return Arrays.copyOf(newlines, count);
+	}
 
-		return -1;
+	/**
+	 * Returns the number of newline characters in this rope.
+	 * @return the number of newlines.
+	 */
+	int newlineCount() {
+		return this.newlines().length;
+	}
+
+	/**
+	 * Returns the offset of the specified newline character.
+	 * @param n the index of the newline, counted from zero.
+	 * @return the offset of the newline.
+	 */
+	int newlineOffset(final int n) {
+		return this.newlines()[n];
+	}
+
+	/**
+	 * Returns the number of newline characters before the specified
+	 * offset.
+	 * @param offset the offset.
+	 * @return the number of newlines before the offset.
+	 */
+	int newlinesBefore(final int offset) {
+		final int index = Arrays.binarySearch(this.newlines(), offset);
+		return (index >= 0 ? index: -index - 1);
+	}
+
+	private boolean isSurrogatePair(final int index) {
+		return index >= 0 && index + 1 < this.length()
+			&& Character.isHighSurrogate(this.charAt(index)) && Character.isLowSurrogate(this.charAt(index + 1));
 	}
 
 	public Rope insert(final int dstOffset, final CharSequence s) {
-		final Rope r = (s == null) ? Rope.BUILDER.build("null"): Rope.BUILDER.build(s);
+		final Rope r = RopeUtilities.INSTANCE.build(s == null ? "null": s, this.getPolicy());
 		if (dstOffset == 0)
 			return r.append(this);
 		else if (dstOffset == this.length())
@@ -232,7 +513,8 @@ public abstract class AbstractRope implements Rope {
 
 	public Rope trimStart() {
 		int index = -1;
-		for (final char c: this) {
+		for (final RopeCursor i=this.cursor(); i.hasNext(); ) {
+			final char c = i.nextChar();
 			++index;
 			if (c > 0x20 && !Character.isWhitespace(c))
 				break;
@@ -255,18 +537,35 @@ public abstract class AbstractRope implements Rope {
         return Pattern.matches(regex, this.getForSequentialAccess());
 	}
 
+	public Rope compact() {
+		return this;
+	}
+
 	public Rope rebalance() {
 		return this;
 	}
 
+	public int offsetByCodePoints(final int index, final int codePointOffset) {
+		if (index < 0 || index > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + index);
+		if (codePointOffset == 0)
+			return index;
+		long target = (long) this.codePointsBefore(index) + codePointOffset;
+		if (codePointOffset > 0 && this.isSurrogatePair(index - 1))
+			--target;
+		if (target < 0 || target > this.codePointsBefore(this.length()))
+			throw new IndexOutOfBoundsException("Code point offset out of range: " + codePointOffset);
+		return this.codePointOffset((int) target);
+	}
+
 	public Iterator<Character> reverseIterator() {
 		return this.reverseIterator(0);
 	}
 
 	public Rope trimEnd() {
 		int index = this.length() + 1;
-		for (final Iterator<Character> i=this.reverseIterator(); i.hasNext();) {
-			final char c = i.next();
+		for (final RopeCursor i=this.cursor(this.length()); i.hasPrevious();) {
+			final char c = i.prevChar();
 			--index;
 			if (c > 0x20 && !Character.isWhitespace(c))
 				break;
@@ -279,20 +578,36 @@ public abstract class AbstractRope implements Rope {
 
 	@Override
 	public String toString() {
-		final StringWriter out = new StringWriter(this.length());
-		try {
-			this.write(out);
-			out.close();
-		} catch (final IOException e) {
-			throw new RuntimeException(e);
-		}
-		return out.toString();
+		final char[] result = new char[this.length()];
+		this.getChars(0, result.length, result, 0);
+		return new String(result);
+	}
+
+	/**
+	 * Checks that the specified range lies within this rope.
+	 */
+	protected final void checkRange(final int start, final int end) {
+		if (start < 0 || start > end || end > this.length())
+			throw new IndexOutOfBoundsException("Illegal range (" + start + "," + end + ") for rope with length " + this.length());
+	}
+
+	/**
+	 * Checks the arguments of a call to <code>getChars</code>.
+	 */
+	protected final void checkGetChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+		this.checkRange(srcBegin, srcEnd);
+		if (dstBegin < 0 || dstBegin + (srcEnd - srcBegin) > dst.length)
+			throw new IndexOutOfBoundsException("Illegal destination offset " + dstBegin + " for array with length " + dst.length);
 	}
 
 	public Rope trim() {
 		return this.trimStart().trimEnd();
 	}
 
+	public void write(final OutputStream out, final Charset charset) throws IOException {
+		RopeUtilities.INSTANCE.write(this, out, charset);
+	}
+
 	public Object writeReplace() throws ObjectStreamException {
 		return new SerializedRope(this);
 	}
@@ -307,7 +622,7 @@ public abstract class AbstractRope implements Rope {
 		if (toPad < 1)
 			return this;
 		return RopeUtilities.INSTANCE.concatenate(
-			Rope.BUILDER.build(new RepeatedCharacterSequence(padChar, toPad)), 
+			RopeUtilities.INSTANCE.build(new RepeatedCharacterSequence(padChar, toPad), this.getPolicy()), 
 			this);
 	}
 
@@ -321,7 +636,7 @@ public abstract class AbstractRope implements Rope {
 			return this;
 		return RopeUtilities.INSTANCE.concatenate( 
 				this,
-				Rope.BUILDER.build(new RepeatedCharacterSequence(padChar, toPad)));
+				RopeUtilities.INSTANCE.build(new RepeatedCharacterSequence(padChar, toPad), this.getPolicy()));
 	}
 	
     public boolean isEmpty() {
@@ -0,0 +1,598 @@
+/*
+ *  BTreeRope.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.ahmadsoft.ropes.ChunkConsumer;
+import org.ahmadsoft.ropes.Rope;
+import org.ahmadsoft.ropes.RopeCursor;
+import org.ahmadsoft.ropes.RopePolicy;
+
+/**
+ * A rope stored as a B-tree of wide nodes. Each node holds between
+ * <code>MIN_CHILDREN</code> and <code>MAX_CHILDREN</code> children, all
+ * of the same height, together with the prefix sums of their lengths, so
+ * a rope of hundreds of megabytes is only three to five levels deep and
+ * locating an index takes a binary search over a small array at each
+ * level. Leaves are flat ropes of up to the leaf length of the rope's
+ * <code>RopePolicy</code>; leaves shorter than half of it are merged
+ * with a neighbour as the rope is edited.
+ * <p>
+ * The tree is persistent: concatenation, <code>subSequence</code>,
+ * <code>insert</code> and <code>delete</code> share every node outside
+ * the edited paths and take time logarithmic in the length of the rope.
+ * Ropes derived from a B-tree rope are B-tree ropes themselves, and the
+ * tree never needs rebalancing.
+ * <p>
+ * The concatenation and split algorithms follow the rope of the xi
+ * editor: a shorter tree is joined to the spine of a taller one, and
+ * overfull nodes are split on the way back up.
+ *
+ * @author Amin Ahmad
+ * @see org.ahmadsoft.ropes.RopeBuilder#buildBTree(CharSequence)
+ */
+public final class BTreeRope extends AbstractRope {
+
+	/** The maximum number of children of a node. */
+	static final int MAX_CHILDREN = 32;
+	/** The minimum number of children of a node other than the root. */
+	static final int MIN_CHILDREN = BTreeRope.MAX_CHILDREN / 2;
+
+	private final Rope[] children;
+	/**
+	 * The offset of each child, followed by the length of the node, so
+	 * that <code>offsets[j+1] - offsets[j]</code> is the length of child j.
+	 */
+	private final int[] offsets;
+	private final byte height;
+	/**
+	 * The number of newlines before each child, followed by the number in
+	 * the node. Computed on first use.
+	 */
+	private volatile int[] newlineCounts;
+	/**
+	 * The number of surrogate pairs before each child, including pairs
+	 * split between children, followed by the number in the node.
+	 * Computed on first use.
+	 */
+	private volatile int[] surrogatePairCounts;
+
+	private BTreeRope(final Rope[] children) {
+		this.children = children;
+		this.offsets = new int[children.length + 1];
+		for (int j=0; j<children.length; ++j)
+			this.offsets[j + 1] = this.offsets[j] + children[j].length();
+		this.height = (byte) (BTreeRope.height(children[0]) + 1);
+	}
+
+	/**
+	 * Builds a B-tree rope holding the specified characters. The text
+	 * is copied into leaves of equal length no longer than the leaf
+	 * length of the policy, and the tree is built bottom up.
+	 * @param sequence the characters.
+	 * @param policy the policy of the rope.
+	 * @return a B-tree rope.
+	 */
+	public static BTreeRope build(final CharSequence sequence, final RopePolicy policy) {
+		if (sequence instanceof BTreeRope)
+			return (BTreeRope) sequence;
+		final Rope rope = Rope.BUILDER.build(sequence);
+		final int length = rope.length();
+		final int leafCount = Math.max(1, (length + policy.getLeafLength() - 1) / policy.getLeafLength());
+		Rope[] level = new Rope[leafCount];
+		for (int j=0, start=0; j<leafCount; ++j) {
+			final int end = (int) ((long) length * (j + 1) / leafCount);
+			final char[] leaf = new char[end - start];
+			rope.getChars(start, end, leaf, 0);
+			level[j] = RopeUtilities.INSTANCE.flat(leaf, 0, leaf.length, policy);
+			start = end;
+		}
+		while (level.length > 1) {
+			final int nodeCount = (level.length + BTreeRope.MAX_CHILDREN - 1) / BTreeRope.MAX_CHILDREN;
+			final Rope[] next = new Rope[nodeCount];
+			for (int j=0, start=0; j<nodeCount; ++j) {
+				final int end = (int) ((long) level.length * (j + 1) / nodeCount);
+				next[j] = new BTreeRope(Arrays.copyOfRange(level, start, end));
+				start = end;
+			}
+			level = next;
+		}
+		return BTreeRope.wrap(level[0]);
+	}
+
+	/**
+	 * Concatenates two ropes, at least one of which is a B-tree rope,
+	 * into a B-tree rope. A rope that is not a B-tree rope is added leaf
+	 * by leaf.
+	 * @param left the first rope.
+	 * @param right the second rope.
+	 * @return the concatenation of the specified ropes.
+	 */
+	static BTreeRope concatenate(final Rope left, final Rope right) {
+		if (right.length() == 0 && left instanceof BTreeRope)
+			return (BTreeRope) left;
+		if (left.length() == 0 && right instanceof BTreeRope)
+			return (BTreeRope) right;
+		final RopePolicy policy = RopeUtilities.INSTANCE.policy(left);
+		if (left.length() == 0)
+			return BTreeRope.wrap(BTreeRope.toNode(right, policy));
+		if (right.length() == 0)
+			return BTreeRope.wrap(BTreeRope.toNode(left, policy));
+		return BTreeRope.wrap(BTreeRope.concat(BTreeRope.toNode(left, policy), BTreeRope.toNode(right, policy), policy));
+	}
+
+	/**
+	 * Returns the height of a node: zero for a leaf.
+	 */
+	private static int height(final Rope node) {
+		return node instanceof BTreeRope ? ((BTreeRope) node).height: 0;
+	}
+
+	/**
+	 * Returns <code>true</code> if a node is full enough to be the child
+	 * of another node.
+	 */
+	private static boolean isOkChild(final Rope node, final RopePolicy policy) {
+		if (node instanceof BTreeRope)
+			return ((BTreeRope) node).children.length >= BTreeRope.MIN_CHILDREN;
+		return node.length() >= BTreeRope.minLeafLength(policy);
+	}
+
+	/**
+	 * Returns the length below which a leaf is merged with a neighbour.
+	 */
+	private static int minLeafLength(final RopePolicy policy) {
+		return policy.getLeafLength() / 2;
+	}
+
+	/**
+	 * Makes a rope out of a node, wrapping a leaf in a single node.
+	 */
+	private static BTreeRope wrap(final Rope node) {
+		if (node instanceof BTreeRope)
+			return (BTreeRope) node;
+		return new BTreeRope(new Rope[] { node });
+	}
+
+	/**
+	 * Converts a rope into a node, removing the single node wrapped
+	 * around a leaf and adding the leaves of concatenation ropes one by
+	 * one. Leaves longer than the leaf length of the policy are split into
+	 * leaves as by <code>build</code>.
+	 */
+	private static Rope toNode(final Rope rope, final RopePolicy policy) {
+		if (rope instanceof BTreeRope) {
+			final BTreeRope b = (BTreeRope) rope;
+			return b.children.length == 1 ? b.children[0]: b;
+		}
+		if (!(rope instanceof ConcatenationRope)) {
+			if (rope.length() > policy.getLeafLength())
+				return BTreeRope.toNode(BTreeRope.build(rope, policy), policy);
+			return rope;
+		}
+
+		Rope result = null;
+		final LinkedList<Rope> toExamine = new LinkedList<Rope>();
+		toExamine.add(rope);
+		while (toExamine.size() > 0) {
+			final Rope x = toExamine.removeFirst();
+			if (x instanceof ConcatenationRope) {
+				toExamine.addFirst(((ConcatenationRope) x).getRight());
+				toExamine.addFirst(((ConcatenationRope) x).getLeft());
+			} else if (x.length() > 0) {
+				final Rope node = BTreeRope.toNode(x, policy);
+				result = result == null ? node: BTreeRope.concat(result, node, policy);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Concatenates two nodes of any height. The result may be a leaf, or
+	 * a node that is not full enough to be a child.
+	 */
+	private static Rope concat(final Rope left, final Rope right, final RopePolicy policy) {
+		final int h1 = BTreeRope.height(left);
+		final int h2 = BTreeRope.height(right);
+		if (h1 < h2) {
+			final Rope[] children2 = ((BTreeRope) right).children;
+			final Rope[] rest = Arrays.copyOfRange(children2, 1, children2.length);
+			if (h1 == h2 - 1 && BTreeRope.isOkChild(left, policy))
+				return BTreeRope.mergeNodes(new Rope[] { left }, children2);
+			final Rope node = BTreeRope.concat(left, children2[0], policy);
+			if (BTreeRope.height(node) == h2 - 1)
+				return BTreeRope.mergeNodes(new Rope[] { node }, rest);
+			return BTreeRope.mergeNodes(((BTreeRope) node).children, rest);
+		} else if (h1 > h2) {
+			final Rope[] children1 = ((BTreeRope) left).children;
+			final Rope[] rest = Arrays.copyOfRange(children1, 0, children1.length - 1);
+			if (h2 == h1 - 1 && BTreeRope.isOkChild(right, policy))
+				return BTreeRope.mergeNodes(children1, new Rope[] { right });
+			final Rope node = BTreeRope.concat(children1[children1.length - 1], right, policy);
+			if (BTreeRope.height(node) == h1 - 1)
+				return BTreeRope.mergeNodes(rest, new Rope[] { node });
+			return BTreeRope.mergeNodes(rest, ((BTreeRope) node).children);
+		}
+		if (BTreeRope.isOkChild(left, policy) && BTreeRope.isOkChild(right, policy))
+			return new BTreeRope(new Rope[] { left, right });
+		if (h1 == 0)
+			return BTreeRope.mergeLeaves(left, right, policy);
+		return BTreeRope.mergeNodes(((BTreeRope) left).children, ((BTreeRope) right).children);
+	}
+
+	/**
+	 * Makes one node out of two runs of children of the same height, or
+	 * two nodes under a new parent if there are too many children.
+	 */
+	private static BTreeRope mergeNodes(final Rope[] children1, final Rope[] children2) {
+		final Rope[] children = new Rope[children1.length + children2.length];
+		System.arraycopy(children1, 0, children, 0, children1.length);
+		System.arraycopy(children2, 0, children, children1.length, children2.length);
+		if (children.length <= BTreeRope.MAX_CHILDREN)
+			return new BTreeRope(children);
+		final int split = Math.min(BTreeRope.MAX_CHILDREN, children.length - BTreeRope.MIN_CHILDREN);
+		return new BTreeRope(new Rope[] {
+			new BTreeRope(Arrays.copyOfRange(children, 0, split)),
+			new BTreeRope(Arrays.copyOfRange(children, split, children.length))
+		});
+	}
+
+	/**
+	 * Merges two leaves, at least one of which is too short to be a
+	 * child. Short leaves are copied into one leaf; otherwise the short
+	 * leaf takes just enough characters from its neighbour to become
+	 * long enough.
+	 */
+	private static Rope mergeLeaves(final Rope left, final Rope right, final RopePolicy policy) {
+		final int length = left.length() + right.length();
+		if (length <= policy.getLeafLength())
+			return BTreeRope.leaf(left, right);
+		if (left.length() < BTreeRope.minLeafLength(policy)) {
+			final int moved = BTreeRope.minLeafLength(policy) - left.length();
+			return new BTreeRope(new Rope[] {
+				BTreeRope.leaf(left, right.subSequence(0, moved)),
+				BTreeRope.slice(right, moved, right.length(), policy)
+			});
+		}
+		final int moved = BTreeRope.minLeafLength(policy) - right.length();
+		return new BTreeRope(new Rope[] {
+			BTreeRope.slice(left, 0, left.length() - moved, policy),
+			BTreeRope.leaf(left.subSequence(left.length() - moved, left.length()), right)
+		});
+	}
+
+	/**
+	 * Copies two leaves into a new leaf.
+	 */
+	private static Rope leaf(final Rope left, final Rope right) {
+		final char[] leaf = new char[left.length() + right.length()];
+		left.getChars(0, left.length(), leaf, 0);
+		right.getChars(0, right.length(), leaf, left.length());
+		return RopeUtilities.INSTANCE.flat(leaf, 0, leaf.length, RopeUtilities.INSTANCE.policy(left));
+	}
+
+	/**
+	 * Returns part of a leaf, sharing the storage of long flat leaves
+	 * rather than copying it. A part that is not flat, such as the part
+	 * of a reverse rope that splits a surrogate pair, is copied so that
+	 * the leaves of a node have depth zero.
+	 */
+	private static Rope slice(final Rope leaf, final int start, final int end, final RopePolicy policy) {
+		if (leaf instanceof FlatRope && end - start >= BTreeRope.minLeafLength(policy) && end - start < leaf.length())
+			return new SubstringRope((FlatRope) leaf, start, end - start);
+		final Rope slice = leaf.subSequence(start, end);
+		if (RopeUtilities.INSTANCE.depth(slice) == 0)
+			return slice;
+		final char[] copy = new char[slice.length()];
+		slice.getChars(0, copy.length, copy, 0);
+		return RopeUtilities.INSTANCE.flat(copy, 0, copy.length, RopeUtilities.INSTANCE.policy(leaf));
+	}
+
+	/**
+	 * Returns part of a node. The result may be a leaf, or a node that
+	 * is not full enough to be a child.
+	 */
+	private static Rope subNode(final Rope node, final int start, final int end, final RopePolicy policy) {
+		if (start == 0 && end == node.length())
+			return node;
+		if (!(node instanceof BTreeRope))
+			return BTreeRope.slice(node, start, end, policy);
+		final BTreeRope b = (BTreeRope) node;
+		final int first = b.childIndex(start);
+		final int last = b.childIndex(end - 1);
+		if (first == last)
+			return BTreeRope.subNode(b.children[first], start - b.offsets[first], end - b.offsets[first], policy);
+
+		Rope result = BTreeRope.subNode(b.children[first], start - b.offsets[first], b.offsets[first + 1] - b.offsets[first], policy);
+		if (last == first + 2)
+			result = BTreeRope.concat(result, b.children[first + 1], policy);
+		else if (last > first + 2)
+			result = BTreeRope.concat(result, new BTreeRope(Arrays.copyOfRange(b.children, first + 1, last)), policy);
+		return BTreeRope.concat(result, BTreeRope.subNode(b.children[last], 0, end - b.offsets[last], policy), policy);
+	}
+
+	/**
+	 * Returns the index of the child containing the specified index.
+	 * @param index an index in the range <code>[0, length)</code>.
+	 * @return the index of the child.
+	 */
+	int childIndex(final int index) {
+		int lo = 0, hi = this.children.length - 1;
+		while (lo < hi) {
+			final int mid = (lo + hi + 1) >>> 1;
+			if (this.offsets[mid] <= index)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the specified child of this node.
+	 * @param index the index of the child.
+	 * @return the child.
+	 */
+	Rope getChild(final int index) {
+		return this.children[index];
+	}
+
+	/**
+	 * Returns the number of children of this node.
+	 * @return the number of children.
+	 */
+	int getChildCount() {
+		return this.children.length;
+	}
+
+	/**
+	 * Returns the offset of the specified child within this node.
+	 * @param index the index of the child.
+	 * @return the offset of the child.
+	 */
+	int getChildOffset(final int index) {
+		return this.offsets[index];
+	}
+
+	public RopePolicy getPolicy() {
+		return RopeUtilities.INSTANCE.policy(this.children[0]);
+	}
+
+	public char charAt(final int index) {
+		if (index < 0 || index >= this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + index);
+		BTreeRope node = this;
+		int offset = index;
+		while (true) {
+			final int j = node.childIndex(offset);
+			offset -= node.offsets[j];
+			if (node.height == 1)
+				return node.children[j].charAt(offset);
+			node = (BTreeRope) node.children[j];
+		}
+	}
+
+	public RopeCursor cursor(final int start) {
+		return new ConcatenationRopeCursorImpl(this, start);
+	}
+
+	@Override
+	public byte depth() {
+		return this.height;
+	}
+
+	public boolean forEachChunk(final int start, final int end, final ChunkConsumer consumer) {
+		this.checkRange(start, end);
+		if (start == end)
+			return true;
+		for (int j=this.childIndex(start), last=this.childIndex(end - 1); j<=last; ++j) {
+			final int offset = this.offsets[j];
+			final int s = Math.max(start, offset) - offset;
+			final int e = Math.min(end, this.offsets[j + 1]) - offset;
+			if (!this.children[j].forEachChunk(s, e, consumer))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	int hash(final int start, final int end) {
+		if (start == end)
+			return 0;
+		int hash = 0;
+		for (int j=this.childIndex(start), last=this.childIndex(end - 1); j<=last; ++j) {
+			final int offset = this.offsets[j];
+			final int s = Math.max(start, offset) - offset;
+			final int e = Math.min(end, this.offsets[j + 1]) - offset;
+			hash = hash * RopeUtilities.INSTANCE.power31(e - s) + RopeUtilities.INSTANCE.hash(this.children[j], s, e);
+		}
+		return hash;
+	}
+
+	public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+		this.checkGetChars(srcBegin, srcEnd, dst, dstBegin);
+		if (srcBegin == srcEnd)
+			return;
+		for (int j=this.childIndex(srcBegin), last=this.childIndex(srcEnd - 1); j<=last; ++j) {
+			final int offset = this.offsets[j];
+			final int s = Math.max(srcBegin, offset);
+			final int e = Math.min(srcEnd, this.offsets[j + 1]);
+			this.children[j].getChars(s - offset, e - offset, dst, dstBegin + s - srcBegin);
+		}
+	}
+
+	@Override
+	public CharSequence getForSequentialAccess() {
+		return new RopeFinger(this);
+	}
+
+	public Iterator<Character> iterator(final int start) {
+		if (start < 0 || start > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		return new ConcatenationRopeIteratorImpl(this, start);
+	}
+
+	public int length() {
+		return this.offsets[this.children.length];
+	}
+
+	private int[] surrogatePairCounts() {
+		int[] counts = this.surrogatePairCounts;
+		if (counts == null) {
+			counts = new int[this.children.length + 1];
+			for (int j=0; j<this.children.length; ++j)
+				counts[j+1] = counts[j] + RopeUtilities.INSTANCE.surrogatePairCount(this.children[j]) + this.splitPairs(j);
+			this.surrogatePairCounts = counts;
+		}
+		return counts;
+	}
+
+	/*
+	 * Returns 1 if a surrogate pair is split between child j and the child
+	 * before it, and 0 otherwise.
+	 */
+	private int splitPairs(final int j) {
+		return (j > 0 && RopeUtilities.INSTANCE.isSurrogatePair(this.children[j - 1], this.children[j]) ? 1: 0);
+	}
+
+	private int[] newlineCounts() {
+		int[] counts = this.newlineCounts;
+		if (counts == null) {
+			counts = new int[this.children.length + 1];
+			for (int j=0; j<this.children.length; ++j)
+				counts[j+1] = counts[j] + RopeUtilities.INSTANCE.newlineCount(this.children[j]);
+			this.newlineCounts = counts;
+		}
+		return counts;
+	}
+
+	@Override
+	int newlineCount() {
+		return this.newlineCounts()[this.children.length];
+	}
+
+	@Override
+	int newlineOffset(final int n) {
+		final int[] counts = this.newlineCounts();
+		int lo = 0, hi = this.children.length - 1;
+		while (lo < hi) {
+			final int mid = (lo + hi + 1) >>> 1;
+			if (counts[mid] <= n)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return this.offsets[lo] + RopeUtilities.INSTANCE.newlineOffset(this.children[lo], n - counts[lo]);
+	}
+
+	@Override
+	int newlinesBefore(final int offset) {
+		final int j = this.childIndex(offset);
+		return this.newlineCounts()[j] + RopeUtilities.INSTANCE.newlinesBefore(this.children[j], offset - this.offsets[j]);
+	}
+
+	/*
+	 * Implementation Note: B-tree ropes are balanced by construction.
+	 */
+	@Override
+	public Rope rebalance() {
+		return this;
+	}
+
+	@Override
+	int codePointOffset(final int codePoints) {
+		final int[] counts = this.surrogatePairCounts();
+		int lo = 0, hi = this.children.length - 1;
+		while (lo < hi) {
+			final int mid = (lo + hi + 1) >>> 1;
+			if (this.offsets[mid] - counts[mid] <= codePoints)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return this.offsets[lo] + RopeUtilities.INSTANCE.codePointOffset(this.children[lo],
+			codePoints - (this.offsets[lo] - counts[lo]) + this.splitPairs(lo));
+	}
+
+	public Rope reverse() {
+		// a surrogate pair split between children cannot be kept in order
+		// by reversing the children, so such ropes are rebuilt.
+		for (int j=1; j<this.children.length; ++j)
+			if (this.splitPairs(j) > 0)
+				return BTreeRope.build(new StringBuilder(this).reverse(), this.getPolicy());
+		final Rope[] reversed = new Rope[this.children.length];
+		for (int j=0; j<this.children.length; ++j)
+			reversed[this.children.length - 1 - j] = this.children[j].reverse();
+		return new BTreeRope(reversed);
+	}
+
+	@Override
+	int surrogatePairCount() {
+		return this.surrogatePairCounts()[this.children.length];
+	}
+
+	@Override
+	int surrogatePairsBefore(final int offset) {
+		final int j = this.childIndex(offset);
+		return this.surrogatePairCounts()[j] + (offset > this.offsets[j] ? this.splitPairs(j): 0)
+			+ RopeUtilities.INSTANCE.surrogatePairsBefore(this.children[j], offset - this.offsets[j]);
+	}
+
+	public Iterator<Character> reverseIterator(final int start) {
+		if (start < 0 || start > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		return new ConcatenationRopeReverseIteratorImpl(this, start);
+	}
+
+	public Rope subSequence(final int start, final int end) {
+		if (start < 0 || end > this.length() || start > end)
+			throw new IllegalArgumentException("Illegal subsequence (" + start + "," + end + ")");
+		if (start == 0 && end == this.length())
+			return this;
+		if (start == end)
+			return new BTreeRope(new Rope[] { new FlatCharArrayRope(new char[0], 0, 0, this.getPolicy()) });
+		return BTreeRope.wrap(BTreeRope.subNode(this, start, end, this.getPolicy()));
+	}
+
+	public void write(final Writer out) throws IOException {
+		for (final Rope child: this.children)
+			child.write(out);
+	}
+
+	public void write(final Writer out, final int offset, final int length) throws IOException {
+		if (length == 0)
+			return;
+		final int end = offset + length;
+		for (int j=this.childIndex(offset), last=this.childIndex(end - 1); j<=last; ++j) {
+			final int o = this.offsets[j];
+			final int s = Math.max(offset, o);
+			final int e = Math.min(end, this.offsets[j + 1]);
+			this.children[j].write(out, s - o, e - s);
+		}
+	}
+}
@@ -26,7 +26,10 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.Iterator;
 
+import org.ahmadsoft.ropes.ChunkConsumer;
 import org.ahmadsoft.ropes.Rope;
+import org.ahmadsoft.ropes.RopeCursor;
+import org.ahmadsoft.ropes.RopePolicy;
 
 /**
  * A rope that represents the concatenation of two other ropes.
@@ -38,6 +41,10 @@ public final class ConcatenationRope extends AbstractRope {
     private final Rope right;
     private final byte depth;
     private final int length;
+    private volatile Rope rebalanced;
+    private volatile boolean rebalancePending;
+    private int newlineCount = -1;
+    private int surrogatePairCount = -1;
 
     /**
      * Create a new concatenation rope from two ropes.
@@ -58,58 +65,80 @@ public final class ConcatenationRope extends AbstractRope {
         return (index < this.left.length() ? this.left.charAt(index): this.right.charAt(index - this.left.length()));
     }
 
+    @Override
+    public Rope compact() {
+        return RopeUtilities.INSTANCE.compact(this);
+    }
+
+    /*
+     * Implementation Note: A surrogate pair may be split between the
+     * children; it counts as a pair of this rope, lying at the boundary.
+     */
+    @Override
+    int codePointOffset(final int codePoints) {
+        final int l = this.left.length();
+        final int leftCodePoints = l - RopeUtilities.INSTANCE.surrogatePairCount(this.left);
+        if (codePoints < leftCodePoints)
+            return RopeUtilities.INSTANCE.codePointOffset(this.left, codePoints);
+        final int boundary = (RopeUtilities.INSTANCE.isSurrogatePair(this.left, this.right) ? 1: 0);
+        return l + RopeUtilities.INSTANCE.codePointOffset(this.right, codePoints - leftCodePoints + boundary);
+    }
+
+    public RopeCursor cursor(final int start) {
+        return new ConcatenationRopeCursorImpl(this, start);
+    }
+
     @Override
     public byte depth() {
         return this.depth;
     }
 
+    public boolean forEachChunk(final int start, final int end, final ChunkConsumer consumer) {
+        this.checkRange(start, end);
+        final int l = this.left.length();
+        if (end <= l)
+            return this.left.forEachChunk(start, end, consumer);
+        if (start >= l)
+            return this.right.forEachChunk(start - l, end - l, consumer);
+        return this.left.forEachChunk(start, l, consumer)
+            && this.right.forEachChunk(0, end - l, consumer);
+    }
+
+    /*
+     * Implementation Note: The hash of a range spanning both children is
+     * composed as hash(left part) * 31^length(right part) + hash(right part).
+     */
     @Override
-    public CharSequence getForSequentialAccess() {
-        return this.getForSequentialAccess(this);
+    int hash(final int start, final int end) {
+        final int leftLength = this.left.length();
+        if (end <= leftLength)
+            return RopeUtilities.INSTANCE.hash(this.left, start, end);
+        if (start >= leftLength)
+            return RopeUtilities.INSTANCE.hash(this.right, start - leftLength, end - leftLength);
+        return RopeUtilities.INSTANCE.hash(this.left, start, leftLength) * RopeUtilities.INSTANCE.power31(end - leftLength)
+            + RopeUtilities.INSTANCE.hash(this.right, 0, end - leftLength);
+    }
+
+    public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+        this.checkGetChars(srcBegin, srcEnd, dst, dstBegin);
+        final int l = this.left.length();
+        if (srcEnd <= l) {
+            this.left.getChars(srcBegin, srcEnd, dst, dstBegin);
+        } else if (srcBegin >= l) {
+            this.right.getChars(srcBegin - l, srcEnd - l, dst, dstBegin);
+        } else {
+            this.left.getChars(srcBegin, l, dst, dstBegin);
+            this.right.getChars(0, srcEnd - l, dst, dstBegin + l - srcBegin);
+        }
     }
 
     /*
-     * Returns this object as a char sequence optimized for
-     * regular expression searches.
-     * <p>
-     * <emph>This method is public only to facilitate unit
-     * testing.</emph>
+     * Returns a finger over this rope, which keeps its position in the
+     * tree between calls to charAt.
      */
-    private CharSequence getForSequentialAccess(final Rope rope) {
-        return new CharSequence() {
-
-            private final ConcatenationRopeIteratorImpl iterator = (ConcatenationRopeIteratorImpl) rope.iterator(0);
-
-            public char charAt(final int index) {
-                if (index > this.iterator.getPos()) {
-                    this.iterator.skip(index-this.iterator.getPos()-1);
-                    try {
-                        final char c = this.iterator.next();
-                        return c;
-                    } catch (final IllegalArgumentException e) {
-                        System.out.println("Rope length is: " + rope.length() + " charAt is " + index);
-                        throw e;
-                    }
-                } else { /* if (index <= lastIndex) */
-                    final int toMoveBack = this.iterator.getPos() - index + 1;
-                    if (this.iterator.canMoveBackwards(toMoveBack)) {
-                        this.iterator.moveBackwards(toMoveBack);
-                        return this.iterator.next();
-                    } else {
-                        return rope.charAt(index);
-                    }
-                }
-            }
-
-            public int length() {
-                return rope.length();
-            }
-
-            public CharSequence subSequence(final int start, final int end) {
-                return rope.subSequence(start, end);
-            }
-
-        };
+    @Override
+    public CharSequence getForSequentialAccess() {
+        return new RopeFinger(this);
     }
 
     /**
@@ -120,6 +149,10 @@ public final class ConcatenationRope extends AbstractRope {
         return this.left;
     }
 
+    public RopePolicy getPolicy() {
+        return RopeUtilities.INSTANCE.policy(this.left);
+    }
+
     /**
      * Return the right-hand rope.
      * @return the right-hand rope.
@@ -128,6 +161,24 @@ public final class ConcatenationRope extends AbstractRope {
         return this.right;
     }
 
+    /**
+     * Returns the rebalanced form of this rope published by a background
+     * rebalance, or <code>null</code> if there is none yet.
+     * @return the rebalanced form of this rope.
+     */
+    Rope getRebalanced() {
+        return this.rebalanced;
+    }
+
+    /**
+     * Returns whether this rope is part of a rope queued for a background
+     * rebalance that has not completed.
+     * @return <code>true</code> if a rebalance is pending.
+     */
+    boolean isRebalancePending() {
+        return this.rebalancePending;
+    }
+
     public Iterator<Character> iterator(final int start) {
         if (start < 0 || start > this.length())
             throw new IndexOutOfBoundsException("Rope index out of range: " + start);
@@ -142,12 +193,64 @@ public final class ConcatenationRope extends AbstractRope {
         return this.length;
     }
 
+    @Override
+    int newlineCount() {
+        if (this.newlineCount < 0)
+            this.newlineCount = RopeUtilities.INSTANCE.newlineCount(this.left) + RopeUtilities.INSTANCE.newlineCount(this.right);
+        return this.newlineCount;
+    }
+
+    @Override
+    int newlineOffset(final int n) {
+        final int leftCount = RopeUtilities.INSTANCE.newlineCount(this.left);
+        if (n < leftCount)
+            return RopeUtilities.INSTANCE.newlineOffset(this.left, n);
+        return this.left.length() + RopeUtilities.INSTANCE.newlineOffset(this.right, n - leftCount);
+    }
+
+    @Override
+    int newlinesBefore(final int offset) {
+        final int l = this.left.length();
+        if (offset <= l)
+            return RopeUtilities.INSTANCE.newlinesBefore(this.left, offset);
+        return RopeUtilities.INSTANCE.newlineCount(this.left) + RopeUtilities.INSTANCE.newlinesBefore(this.right, offset - l);
+    }
+
     public Rope rebalance() {
+        final Rope rebalanced = this.rebalanced;
+        if (rebalanced != null)
+            return rebalanced;
         return RopeUtilities.INSTANCE.rebalance(this);
     }
 
     public Rope reverse() {
-        return RopeUtilities.INSTANCE.concatenate(this.getRight().reverse(), this.getLeft().reverse());
+        if (!RopeUtilities.INSTANCE.isSurrogatePair(this.left, this.right))
+            return RopeUtilities.INSTANCE.concatenate(this.getRight().reverse(), this.getLeft().reverse());
+        // keep the surrogate pair split between the children in order.
+        final int l = this.left.length();
+        final Rope pair = RopeUtilities.INSTANCE.concatenate(this.left.subSequence(l - 1, l), this.right.subSequence(0, 1));
+        return RopeUtilities.INSTANCE.concatenate(
+            RopeUtilities.INSTANCE.concatenate(this.right.subSequence(1, this.right.length()).reverse(), pair),
+            this.left.subSequence(0, l - 1).reverse());
+    }
+
+    @Override
+    int surrogatePairCount() {
+        if (this.surrogatePairCount < 0)
+            this.surrogatePairCount = RopeUtilities.INSTANCE.surrogatePairCount(this.left)
+                + (RopeUtilities.INSTANCE.isSurrogatePair(this.left, this.right) ? 1: 0)
+                + RopeUtilities.INSTANCE.surrogatePairCount(this.right);
+        return this.surrogatePairCount;
+    }
+
+    @Override
+    int surrogatePairsBefore(final int offset) {
+        final int l = this.left.length();
+        if (offset <= l)
+            return RopeUtilities.INSTANCE.surrogatePairsBefore(this.left, offset);
+        return RopeUtilities.INSTANCE.surrogatePairCount(this.left)
+            + (RopeUtilities.INSTANCE.isSurrogatePair(this.left, this.right) ? 1: 0)
+            + RopeUtilities.INSTANCE.surrogatePairsBefore(this.right, offset - l);
     }
 
     public Iterator<Character> reverseIterator(final int start) {
@@ -160,6 +263,14 @@ public final class ConcatenationRope extends AbstractRope {
         }
     }
 
+    void setRebalancePending(final boolean rebalancePending) {
+        this.rebalancePending = rebalancePending;
+    }
+
+    void setRebalanced(final Rope rebalanced) {
+        this.rebalanced = rebalanced;
+    }
+
     public Rope subSequence(final int start, final int end) {
         if (start < 0 || end > this.length())
             throw new IllegalArgumentException("Illegal subsequence (" + start + "," + end + ")");
@@ -191,35 +302,28 @@ public final class ConcatenationRope extends AbstractRope {
             this.right.write(out, 0, length - writeLeft);
         }
     }
-    
-
-//  /**
-//   * Not currently used. Can be used if rebalancing is performed
-//   * during concatenation.
-//   **/
-//  private ConcatenationRope rotateLeft(final ConcatenationRope input) {
-//      final Rope _R = input.getRight();
-//      if (!(_R instanceof ConcatenationRope))
-//          return input;
-//      final ConcatenationRope R = (ConcatenationRope) _R;
-//      final Rope L = input.getLeft();
-//      final Rope A = R.getLeft();
-//      final Rope B = R.getRight();
-//      return new ConcatenationRope(new ConcatenationRope(L, A), B);
-//  }
-//
-//  /**
-//   * Not currently used. Can be used if rebalancing is performed
-//   * during concatenation.
-//   **/
-//  private ConcatenationRope rotateRight(final ConcatenationRope input) {
-//      final Rope _L = input.getLeft();
-//      if (!(_L instanceof ConcatenationRope))
-//          return input;
-//      final ConcatenationRope L = (ConcatenationRope) _L;
-//      final Rope R = input.getRight();
-//      final Rope A = L.getLeft();
-//      final Rope B = L.getRight();
-//      return new ConcatenationRope(A, new ConcatenationRope(B, R));
-//  }
+
+    /**
+     * Rotates this rope to the left, turning (L, (A, B)) into ((L, A), B).
+     * If the right-hand rope is not a concatenation, returns this rope.
+     * @return the rotated rope.
+     **/
+    ConcatenationRope rotateLeft() {
+        if (!(this.right instanceof ConcatenationRope))
+            return this;
+        final ConcatenationRope R = (ConcatenationRope) this.right;
+        return new ConcatenationRope(new ConcatenationRope(this.left, R.getLeft()), R.getRight());
+    }
+
+    /**
+     * Rotates this rope to the right, turning ((A, B), R) into (A, (B, R)).
+     * If the left-hand rope is not a concatenation, returns this rope.
+     * @return the rotated rope.
+     **/
+    ConcatenationRope rotateRight() {
+        if (!(this.left instanceof ConcatenationRope))
+            return this;
+        final ConcatenationRope L = (ConcatenationRope) this.left;
+        return new ConcatenationRope(L.getLeft(), new ConcatenationRope(L.getRight(), this.right));
+    }
 }
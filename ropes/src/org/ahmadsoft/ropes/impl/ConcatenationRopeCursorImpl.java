@@ -0,0 +1,88 @@
+/*
+ *  ConcatenationRopeCursorImpl.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes.impl;
+
+import org.ahmadsoft.ropes.Rope;
+import org.ahmadsoft.ropes.RopeCursor;
+
+/**
+ * A cursor for concatenated ropes. The cursor remembers the path from
+ * the root to the leaf it is positioned in, so moving across a leaf
+ * boundary only climbs as far as the nearest common ancestor. A full
+ * traversal is O(n) and, apart from the cursor itself, allocation free.
+ *
+ * @author aahmad
+ */
+public class ConcatenationRopeCursorImpl extends ConcatenationRopePath implements RopeCursor {
+
+	private int pos;
+
+	public ConcatenationRopeCursorImpl(final Rope rope) {
+		this(rope, 0);
+	}
+
+	public ConcatenationRopeCursorImpl(final Rope rope, final int start) {
+		super(rope);
+		if (start < 0 || start > rope.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		this.seek(start);
+	}
+
+	public boolean hasNext() {
+		return this.pos < this.rope.length();
+	}
+
+	public boolean hasPrevious() {
+		return this.pos > 0;
+	}
+
+	public char nextChar() {
+		if (this.pos >= this.leafEnd) {
+			if (this.pos >= this.rope.length())
+				throw new IndexOutOfBoundsException("Rope index out of range: " + this.pos);
+			this.locate(this.pos);
+		}
+		return this.leaf.charAt(this.pos++ - this.leafStart);
+	}
+
+	public char prevChar() {
+		if (this.pos <= this.leafStart) {
+			if (this.pos <= 0)
+				throw new IndexOutOfBoundsException("Rope index out of range: -1");
+			this.locate(this.pos - 1);
+		}
+		return this.leaf.charAt(--this.pos - this.leafStart);
+	}
+
+	public int position() {
+		return this.pos;
+	}
+
+	public void seek(final int position) {
+		if (position < 0 || position > this.rope.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + position);
+		if (position < this.leafStart || position > this.leafEnd)
+			this.locate(position < this.rope.length() ? position: position - 1);
+		this.pos = position;
+	}
+}
@@ -22,7 +22,6 @@
  */
 package org.ahmadsoft.ropes.impl;
 
-import java.util.LinkedList;
 import java.util.Iterator;
 
 import org.ahmadsoft.ropes.Rope;
@@ -32,16 +31,18 @@ import org.ahmadsoft.ropes.Rope;
  * rope structure is guaranteed to be O(n) so long as it is reasonably
  * well-balanced. Compare this to O(nlogn) for iteration using
  * <code>charAt</code>.
+ * <p>
+ * The iterator keeps the path to the current leaf in arrays sized by
+ * the depth of the rope, and can move backwards across leaf boundaries
+ * as well as forwards.
  *
  * @author aahmad
  */
-public class ConcatenationRopeIteratorImpl implements Iterator<Character> {
+public class ConcatenationRopeIteratorImpl extends ConcatenationRopePath implements Iterator<Character> {
 
-	private final LinkedList<Rope> toTraverse;
-	private Rope currentRope;
-	private int currentRopePos;
+	/** The index of the next character to return. */
+	private int pos;
 	private int skip;
-	private int currentAbsolutePos;
 
 
 	public ConcatenationRopeIteratorImpl(final Rope rope) {
@@ -49,87 +50,41 @@ public class ConcatenationRopeIteratorImpl implements Iterator<Character> {
 	}
 
 	public ConcatenationRopeIteratorImpl(final Rope rope, final int start) {
-		this.toTraverse = new LinkedList<Rope>();
-		this.toTraverse.addFirst(rope);
-		this.currentRope = null;
-		this.initialize();
-
+		super(rope);
 		if (start < 0 || start > rope.length()) {
 			throw new IllegalArgumentException("Rope index out of range: " + start);
 		}
-		this.moveForward(start);
+		this.pos = start;
 	}
 
 	public boolean canMoveBackwards(final int amount) {
-		return (-1 <= (this.currentRopePos - amount));
+		return (0 <= (this.pos - amount));
 	}
 
 	public int getPos() {
-		return this.currentAbsolutePos;
+		return this.pos - 1;
 	}
 
 	public boolean hasNext() {
-		return this.currentRopePos < this.currentRope.length() - 1 || !this.toTraverse.isEmpty();
-	}
-
-	/**
-	 * Initialize the currentRope and currentRopePos fields.
-	 */
-	private void initialize() {
-		while (!this.toTraverse.isEmpty()) {
-			this.currentRope = this.toTraverse.removeFirst();
-			if (this.currentRope instanceof ConcatenationRope) {
-				this.toTraverse.addFirst(((ConcatenationRope) this.currentRope).getRight());
-				this.toTraverse.addFirst(((ConcatenationRope) this.currentRope).getLeft());
-			} else {
-				break;
-			}
-		}
-		if (this.currentRope == null)
-			throw new IllegalArgumentException("No terminal ropes present.");
-		this.currentRopePos = -1;
-		this.currentAbsolutePos = -1;
+		return this.pos < this.rope.length();
 	}
 
 	public void moveBackwards(final int amount) {
 		if (!this.canMoveBackwards(amount))
 			throw new IllegalArgumentException("Unable to move backwards " + amount + ".");
-		this.currentRopePos -= amount;
-		this.currentAbsolutePos -= amount;
+		this.pos -= amount;
 	}
 
 	public void moveForward(final int amount) {
-		this.currentAbsolutePos += amount;
-		int remainingAmt = amount;
-		while (remainingAmt != 0) {
-			final int available = this.currentRope.length() - this.currentRopePos - 1;
-			if (remainingAmt <= available) {
-				this.currentRopePos += remainingAmt;
-				return;
-			}
-			remainingAmt -= available;
-			if (this.toTraverse.isEmpty()) {
-				this.currentAbsolutePos -= remainingAmt;
-				throw new IllegalArgumentException("Unable to move forward " + amount + ". Reached end of rope.");
-			}
-
-			while (!this.toTraverse.isEmpty()) {
-				this.currentRope = this.toTraverse.removeFirst();
-				if (this.currentRope instanceof ConcatenationRope) {
-					this.toTraverse.addFirst(((ConcatenationRope) this.currentRope).getRight());
-					this.toTraverse.addFirst(((ConcatenationRope) this.currentRope).getLeft());
-				} else {
-					this.currentRopePos = -1;
-					break;
-				}
-			}
-		}
+		if (this.pos + amount > this.rope.length())
+			throw new IllegalArgumentException("Unable to move forward " + amount + ". Reached end of rope.");
+		this.pos += amount;
 	}
 
 	public Character next() {
 		this.moveForward(1 + this.skip);
 		this.skip = 0;
-		return this.currentRope.charAt(this.currentRopePos);
+		return this.charAt(this.pos - 1);
 	}
 
 	public void remove() {
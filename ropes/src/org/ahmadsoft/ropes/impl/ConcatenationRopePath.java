@@ -0,0 +1,121 @@
+/*
+ *  ConcatenationRopePath.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes.impl;
+
+import org.ahmadsoft.ropes.Rope;
+
+/**
+ * The path from the root of a concatenated rope to one of its leaves.
+ * The path is kept in arrays sized by the depth of the rope, which is
+ * bounded by rebalancing, so walking the rope never allocates. Moving
+ * to another leaf only climbs as far as the nearest common ancestor.
+ * <p>
+ * This is the common base of the cursors and iterators over
+ * concatenated ropes. B-tree nodes are descended in the same way.
+ *
+ * @author aahmad
+ */
+abstract class ConcatenationRopePath {
+
+	final Rope rope;
+	/** The concatenation ropes on the path to the current leaf, root first. */
+	private final Rope[] path;
+	/** The absolute offset of each rope in <code>path</code>. */
+	private final int[] pathStart;
+	private int pathDepth;
+
+	/** The current leaf. */
+	Rope leaf;
+	/** The absolute offset of the current leaf. */
+	int leafStart;
+	/** The absolute offset of the end of the current leaf. */
+	int leafEnd;
+
+	ConcatenationRopePath(final Rope rope) {
+		this.rope = rope;
+		this.path = new Rope[RopeUtilities.INSTANCE.depth(rope) + 1];
+		this.pathStart = new int[this.path.length];
+		this.leaf = rope;
+		this.leafStart = 0;
+		this.leafEnd = 0;
+	}
+
+	/**
+	 * Positions the current leaf on the leaf containing the specified
+	 * index, climbing only as far up the current path as necessary.
+	 * @param index an index in the range <code>[0, length)</code>.
+	 */
+	final void locate(final int index) {
+		if (index < 0)
+			return;
+		while (this.pathDepth > 1 && (index < this.pathStart[this.pathDepth - 1]
+				|| index >= this.pathStart[this.pathDepth - 1] + this.path[this.pathDepth - 1].length()))
+			--this.pathDepth;
+
+		Rope node;
+		int start;
+		if (this.pathDepth == 0) {
+			node = this.rope;
+			start = 0;
+		} else {
+			--this.pathDepth;
+			node = this.path[this.pathDepth];
+			start = this.pathStart[this.pathDepth];
+		}
+		while (node instanceof ConcatenationRope || node instanceof BTreeRope) {
+			this.path[this.pathDepth] = node;
+			this.pathStart[this.pathDepth] = start;
+			++this.pathDepth;
+			if (node instanceof BTreeRope) {
+				final BTreeRope b = (BTreeRope) node;
+				final int j = b.childIndex(index - start);
+				start += b.getChildOffset(j);
+				node = b.getChild(j);
+				continue;
+			}
+			final ConcatenationRope c = (ConcatenationRope) node;
+			final int split = start + c.getLeft().length();
+			if (index < split) {
+				node = c.getLeft();
+			} else {
+				node = c.getRight();
+				start = split;
+			}
+		}
+		this.leaf = node;
+		this.leafStart = start;
+		this.leafEnd = start + node.length();
+	}
+
+	/**
+	 * Returns the character at the specified index, moving the current
+	 * leaf if necessary.
+	 * @param index an index in the range <code>[0, length)</code>.
+	 * @return the character at the specified index.
+	 */
+	char charAt(final int index) {
+		if (index < this.leafStart || index >= this.leafEnd)
+			this.locate(index);
+		return this.leaf.charAt(index - this.leafStart);
+	}
+}
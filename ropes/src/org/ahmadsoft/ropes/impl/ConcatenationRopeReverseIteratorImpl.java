@@ -22,7 +22,6 @@
  */
 package org.ahmadsoft.ropes.impl;
 
-import java.util.LinkedList;
 import java.util.Iterator;
 
 import org.ahmadsoft.ropes.Rope;
@@ -32,17 +31,18 @@ import org.ahmadsoft.ropes.Rope;
  * a complex rope structure is guaranteed to be O(n) so long as it
  * is reasonably well-balanced. Compare this to O(n log n) for
  * iteration using <code>charAt</code>.
+ * <p>
+ * The iterator keeps the path to the current leaf in arrays sized by
+ * the depth of the rope, and can move backwards across leaf boundaries
+ * as well as forwards.
  *
  * @author aahmad
  */
-public class ConcatenationRopeReverseIteratorImpl implements Iterator<Character> {
+public class ConcatenationRopeReverseIteratorImpl extends ConcatenationRopePath implements Iterator<Character> {
 
-	private final LinkedList<Rope> toTraverse;
-	private final Rope rope;
-	private Rope currentRope;
-	private int currentRopePos;
+	/** The index following the next character to return. */
+	private int pos;
 	private int skip;
-	private int currentAbsolutePos;
 
 
 	public ConcatenationRopeReverseIteratorImpl(final Rope rope) {
@@ -50,85 +50,41 @@ public class ConcatenationRopeReverseIteratorImpl implements Iterator<Character>
 	}
 
 	public ConcatenationRopeReverseIteratorImpl(final Rope rope, final int start) {
-		this.rope = rope;
-		this.toTraverse = new LinkedList<Rope>();
-		this.toTraverse.addFirst(rope);
-		this.currentRope = null;
-		this.initialize();
-
+		super(rope);
 		if (start < 0 || start > rope.length()) {
 			throw new IllegalArgumentException("Rope index out of range: " + start);
 		}
-		this.moveForward(start);
+		this.pos = rope.length() - start;
 	}
 
 	public boolean canMoveBackwards(final int amount) {
-		return (this.currentRopePos + amount <= this.currentRope.length());
+		return (this.pos + amount <= this.rope.length());
 	}
 
 	public int getPos() {
-		return this.currentAbsolutePos;
+		return this.pos;
 	}
 
 	public boolean hasNext() {
-		return this.currentRopePos > 0 || !this.toTraverse.isEmpty();
-	}
-
-	/**
-	 * Initialize the currentRope and currentRopePos fields.
-	 */
-	private void initialize() {
-		while (!this.toTraverse.isEmpty()) {
-			this.currentRope = this.toTraverse.removeFirst();
-			if (this.currentRope instanceof ConcatenationRope) {
-				this.toTraverse.addFirst(((ConcatenationRope) this.currentRope).getLeft());
-				this.toTraverse.addFirst(((ConcatenationRope) this.currentRope).getRight());
-			} else {
-				break;
-			}
-		}
-		if (this.currentRope == null)
-			throw new IllegalArgumentException("No terminal ropes present.");
-		this.currentRopePos = this.currentRope.length();
-		this.currentAbsolutePos = this.rope.length();
+		return this.pos > 0;
 	}
 
 	public void moveBackwards(final int amount) {
 		if (!this.canMoveBackwards(amount))
 			throw new IllegalArgumentException("Unable to move backwards " + amount + ".");
-		this.currentRopePos += amount;
-		this.currentAbsolutePos += amount;
+		this.pos += amount;
 	}
 
 	public void moveForward(final int amount) {
-		this.currentAbsolutePos -= amount;
-		int remainingAmt = amount;
-		while (remainingAmt != 0) {
-			if (this.currentRopePos - remainingAmt > -1) {
-				this.currentRopePos -= remainingAmt;
-				return;
-			}
-			remainingAmt = remainingAmt - this.currentRopePos;
-			if (remainingAmt > 0 && this.toTraverse.isEmpty())
-				throw new IllegalArgumentException("Unable to move forward " + amount + ". Reached end of rope.");
-
-			while (!this.toTraverse.isEmpty()) {
-				this.currentRope = this.toTraverse.removeFirst();
-				if (this.currentRope instanceof ConcatenationRope) {
-					this.toTraverse.addFirst(((ConcatenationRope) this.currentRope).getLeft());
-					this.toTraverse.addFirst(((ConcatenationRope) this.currentRope).getRight());
-				} else {
-					this.currentRopePos = this.currentRope.length();
-					break;
-				}
-			}
-		}
+		if (this.pos - amount < 0)
+			throw new IllegalArgumentException("Unable to move forward " + amount + ". Reached end of rope.");
+		this.pos -= amount;
 	}
 
 	public Character next() {
 		this.moveForward(1 + this.skip);
 		this.skip = 0;
-		return this.currentRope.charAt(this.currentRopePos);
+		return this.charAt(this.pos);
 	}
 
 	public void remove() {
@@ -0,0 +1,418 @@
+/*
+ *  FlatByteArrayRope.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import org.ahmadsoft.ropes.ChunkConsumer;
+import org.ahmadsoft.ropes.Rope;
+import org.ahmadsoft.ropes.RopeCursor;
+import org.ahmadsoft.ropes.RopePattern;
+import org.ahmadsoft.ropes.RopePolicy;
+
+/**
+ * A rope constructed from Latin-1 characters, stored one byte per
+ * character. Text consisting only of characters up to U+00FF takes
+ * half the space of a character array rope, and is scanned twice as
+ * fast.
+ * @author Amin Ahmad
+ */
+public final class FlatByteArrayRope extends AbstractRope implements FlatRope {
+
+	/** The number of characters decoded at a time for chunk consumers. */
+	private static final int CHUNK_LENGTH = 1024;
+
+	private final byte[] sequence;
+	private final RopePolicy policy;
+	private volatile int[] newlines;
+	private int ascii = -1;
+
+	/**
+	 * Constructs a new rope from an array of Latin-1 characters.
+	 * @param sequence the character array.
+	 */
+	public FlatByteArrayRope(final byte[] sequence) {
+		this(sequence, 0, sequence.length, RopePolicy.DEFAULT);
+	}
+
+	/**
+	 * Constructs a new rope from a range of an array of Latin-1 characters.
+	 * @param sequence the character array.
+	 * @param offset the offset in the array.
+	 * @param length the length of the array.
+	 */
+	public FlatByteArrayRope(final byte[] sequence, final int offset, final int length) {
+		this(sequence, offset, length, RopePolicy.DEFAULT);
+	}
+
+	/**
+	 * Constructs a new rope from a range of an array of Latin-1
+	 * characters, with the specified policy.
+	 * @param sequence the character array.
+	 * @param offset the offset in the array.
+	 * @param length the length of the array.
+	 * @param policy the policy of the rope.
+	 */
+	public FlatByteArrayRope(final byte[] sequence, final int offset, final int length, final RopePolicy policy) {
+		if (length > sequence.length)
+			throw new IllegalArgumentException("Length must be less than " + sequence.length);
+		this.sequence = new byte[length];
+		System.arraycopy(sequence, offset, this.sequence, 0, length);
+		this.policy = policy;
+	}
+
+	/**
+	 * Constructs a new rope from a character array range, all of whose
+	 * characters must be Latin-1 characters.
+	 * @param sequence the character array.
+	 * @param offset the offset in the array.
+	 * @param length the length of the array.
+	 * @throws IllegalArgumentException if a character in the range is not
+	 * a Latin-1 character.
+	 * @see #isLatin1(char[], int, int)
+	 */
+	public FlatByteArrayRope(final char[] sequence, final int offset, final int length) {
+		this(sequence, offset, length, RopePolicy.DEFAULT);
+	}
+
+	/**
+	 * Constructs a new rope from a character array range, all of whose
+	 * characters must be Latin-1 characters, with the specified policy.
+	 * @param sequence the character array.
+	 * @param offset the offset in the array.
+	 * @param length the length of the array.
+	 * @param policy the policy of the rope.
+	 * @throws IllegalArgumentException if a character in the range is not
+	 * a Latin-1 character.
+	 */
+	public FlatByteArrayRope(final char[] sequence, final int offset, final int length, final RopePolicy policy) {
+		if (length > sequence.length)
+			throw new IllegalArgumentException("Length must be less than " + sequence.length);
+		this.sequence = new byte[length];
+		for (int j=0; j<length; ++j) {
+			final char c = sequence[offset + j];
+			if (c > 0xff)
+				throw new IllegalArgumentException("Not a Latin-1 character at index " + (offset + j));
+			this.sequence[j] = (byte) c;
+		}
+		this.policy = policy;
+	}
+
+	/**
+	 * Returns whether every character in a character array range is a
+	 * Latin-1 character, and so can be stored in a byte array rope.
+	 * @param sequence the character array.
+	 * @param offset the offset in the array.
+	 * @param length the length of the range.
+	 * @return <code>true</code> if every character is a Latin-1 character.
+	 */
+	public static boolean isLatin1(final char[] sequence, final int offset, final int length) {
+		for (int j=offset; j<offset + length; ++j)
+			if (sequence[j] > 0xff)
+				return false;
+		return true;
+	}
+
+	public char charAt(final int index) {
+		return (char) (this.sequence[index] & 0xff);
+	}
+
+	/*
+	 * Implementation Note: A Latin-1 rope holds no surrogates, so every
+	 * character is a code point.
+	 */
+	@Override
+	int codePointOffset(final int codePoints) {
+		return Math.min(codePoints, this.length());
+	}
+
+	public RopeCursor cursor(final int start) {
+		if (start < 0 || start > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		return new RopeCursor() {
+			int current = start;
+			public boolean hasNext() {
+				return this.current < FlatByteArrayRope.this.length();
+			}
+
+			public boolean hasPrevious() {
+				return this.current > 0;
+			}
+
+			public char nextChar() {
+				if (this.current >= FlatByteArrayRope.this.length())
+					throw new IndexOutOfBoundsException("Rope index out of range: " + this.current);
+				return (char) (FlatByteArrayRope.this.sequence[this.current++] & 0xff);
+			}
+
+			public char prevChar() {
+				if (this.current <= 0)
+					throw new IndexOutOfBoundsException("Rope index out of range: -1");
+				return (char) (FlatByteArrayRope.this.sequence[--this.current] & 0xff);
+			}
+
+			public int position() {
+				return this.current;
+			}
+
+			public void seek(final int position) {
+				if (position < 0 || position > FlatByteArrayRope.this.length())
+					throw new IndexOutOfBoundsException("Rope index out of range: " + position);
+				this.current = position;
+			}
+		};
+	}
+
+	@Override
+	public byte depth() {
+		return 0;
+	}
+
+	/*
+	 * Implementation Note: The bytes are the encoding of this rope in
+	 * Latin-1, and also in ASCII and UTF-8 if every character is an ASCII
+	 * character, which is determined once and cached.
+	 */
+	@Override
+	ByteBuffer encoded(final Charset charset) {
+		if (StandardCharsets.ISO_8859_1.equals(charset))
+			return ByteBuffer.wrap(this.sequence);
+		if (!StandardCharsets.UTF_8.equals(charset) && !StandardCharsets.US_ASCII.equals(charset))
+			return null;
+		if (this.ascii < 0) {
+			int ascii = 1;
+			for (final byte b: this.sequence)
+				if (b < 0) {
+					ascii = 0;
+					break;
+				}
+			this.ascii = ascii;
+		}
+		return (this.ascii > 0 ? ByteBuffer.wrap(this.sequence): null);
+	}
+
+	/*
+	 * Implementation Note: The characters are decoded into a scratch
+	 * buffer, so that consumers see character array chunks.
+	 */
+	public boolean forEachChunk(final int start, final int end, final ChunkConsumer consumer) {
+		this.checkRange(start, end);
+		final char[] chunk = new char[Math.min(end - start, FlatByteArrayRope.CHUNK_LENGTH)];
+		for (int j=start; j<end; j+=chunk.length) {
+			final int length = Math.min(end - j, chunk.length);
+			this.getChars(j, j + length, chunk, 0);
+			if (!consumer.accept(chunk, 0, length))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the array backing this rope, which must not be modified.
+	 * @return the backing array.
+	 */
+	byte[] getSequence() {
+		return this.sequence;
+	}
+
+	@Override
+	int hash(final int start, final int end) {
+		int hash = 0;
+		for (int j=start; j<end; ++j)
+			hash = 31 * hash + (this.sequence[j] & 0xff);
+		return hash;
+	}
+
+	public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+		this.checkGetChars(srcBegin, srcEnd, dst, dstBegin);
+		for (int j=srcBegin; j<srcEnd; ++j)
+			dst[dstBegin + j - srcBegin] = (char) (this.sequence[j] & 0xff);
+	}
+
+	public RopePolicy getPolicy() {
+		return this.policy;
+	}
+
+	/*
+	 * Implementation Note: This is a reproduction of the AbstractRope
+	 * indexOf implementation. Calls to charAt have been replaced
+	 * with direct array access to improve speed.
+	 */
+	@Override
+	public int indexOf(final char ch) {
+		if (ch > 0xff)
+			return -1;
+		final byte b = (byte) ch;
+		for (int j=0; j<this.sequence.length; ++j)
+			if (this.sequence[j] == b)
+				return j;
+		return -1;
+	}
+
+	/*
+	 * Implementation Note: This is a reproduction of the AbstractRope
+	 * indexOf implementation. Calls to charAt have been replaced
+	 * with direct array access to improve speed.
+	 */
+	@Override
+	public int indexOf(final char ch, final int fromIndex) {
+		if (fromIndex < 0 || fromIndex >= this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + fromIndex);
+		if (ch > 0xff)
+			return -1;
+		final byte b = (byte) ch;
+		for (int j=fromIndex; j<this.sequence.length; ++j)
+			if (this.sequence[j] == b)
+				return j;
+		return -1;
+	}
+
+	@Override
+	int indexOf(final RopePattern pattern, final int fromIndex, final int toIndex) {
+		return pattern.indexOf(this, fromIndex, toIndex);
+	}
+
+	/*
+	 * Implementation Note: This is a reproduction of the AbstractRope
+	 * lastIndexOf implementation. Calls to charAt have been replaced
+	 * with direct array access to improve speed.
+	 */
+	@Override
+	public int lastIndexOf(final char ch, final int fromIndex) {
+		if (fromIndex < 0 || fromIndex >= this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + fromIndex);
+		if (ch > 0xff)
+			return -1;
+		final byte b = (byte) ch;
+		for (int j=fromIndex; j>=0; --j)
+			if (this.sequence[j] == b)
+				return j;
+		return -1;
+	}
+
+	@Override
+	int lastIndexOf(final RopePattern pattern, final int fromIndex, final int toIndex) {
+		return pattern.lastIndexOf(this, fromIndex, toIndex);
+	}
+
+	public Iterator<Character> iterator(final int start) {
+		if (start < 0 || start > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		return new Iterator<Character>() {
+			int current = start;
+			public boolean hasNext() {
+				return this.current < FlatByteArrayRope.this.length();
+			}
+
+			public Character next() {
+				return (char) (FlatByteArrayRope.this.sequence[this.current++] & 0xff);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException("Rope iterator is read-only.");
+			}
+		};
+	}
+
+	public int length() {
+		return this.sequence.length;
+	}
+
+	/*
+	 * Implementation Note: The newline offsets of a flat rope are computed
+	 * once and cached, so that substrings of it can be indexed by binary
+	 * search.
+	 */
+	@Override
+	int[] newlines() {
+		int[] newlines = this.newlines;
+		if (newlines == null)
+			this.newlines = newlines = super.newlines();
+		return newlines;
+	}
+
+	public Rope reverse() {
+		return new ReverseRope(this);
+	}
+
+	public Iterator<Character> reverseIterator(final int start) {
+		if (start < 0 || start > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		return new Iterator<Character>() {
+			int current = FlatByteArrayRope.this.length() - start;
+			public boolean hasNext() {
+				return this.current > 0;
+			}
+
+			public Character next() {
+				return (char) (FlatByteArrayRope.this.sequence[--this.current] & 0xff);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException("Rope iterator is read-only.");
+			}
+		};
+	}
+
+	public Rope subSequence(final int start, final int end) {
+		if (start == 0 && end == this.length())
+			return this;
+		if (end - start < this.policy.getArrayCopyLength()) {
+			return new FlatByteArrayRope(this.sequence, start, end-start, this.policy);
+		} else {
+			return new SubstringRope(this, start, end-start);
+		}
+	}
+
+	@Override
+	int surrogatePairCount() {
+		return 0;
+	}
+
+	@Override
+	int surrogatePairsBefore(final int offset) {
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return new String(this.sequence, StandardCharsets.ISO_8859_1);
+	}
+
+	public String toString(final int offset, final int length) {
+		return new String(this.sequence, offset, length, StandardCharsets.ISO_8859_1);
+	}
+
+	public void write(final Writer out) throws IOException {
+		this.write(out, 0, this.length());
+	}
+
+	public void write(final Writer out, final int offset, final int length) throws IOException {
+		out.write(this.toString(offset, length));
+	}
+}
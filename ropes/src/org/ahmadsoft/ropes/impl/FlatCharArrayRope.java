@@ -24,10 +24,13 @@ package org.ahmadsoft.ropes.impl;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.Arrays;
 import java.util.Iterator;
 
+import org.ahmadsoft.ropes.ChunkConsumer;
 import org.ahmadsoft.ropes.Rope;
+import org.ahmadsoft.ropes.RopeCursor;
+import org.ahmadsoft.ropes.RopePattern;
+import org.ahmadsoft.ropes.RopePolicy;
 
 /**
  * A rope constructed from a character array. This rope is even
@@ -37,13 +40,16 @@ import org.ahmadsoft.ropes.Rope;
 public final class FlatCharArrayRope extends AbstractRope implements FlatRope {
 
 	private final char[] sequence;
+	private final RopePolicy policy;
+	private volatile int[] newlines;
+	private volatile int[] surrogatePairs;
 
 	/**
 	 * Constructs a new rope from a character array.
 	 * @param sequence the character array.
 	 */
 	public FlatCharArrayRope(final char[] sequence) {
-		this(sequence, 0, sequence.length);
+		this(sequence, 0, sequence.length, RopePolicy.DEFAULT);
 	}
 
 	/**
@@ -53,21 +59,101 @@ public final class FlatCharArrayRope extends AbstractRope implements FlatRope {
 	 * @param length the length of the array.
 	 */
 	public FlatCharArrayRope(final char[] sequence, final int offset, final int length) {
+		this(sequence, offset, length, RopePolicy.DEFAULT);
+	}
+
+	/**
+	 * Constructs a new rope from a character array range, with the
+	 * specified policy.
+	 * @param sequence the character array.
+	 * @param offset the offset in the array.
+	 * @param length the length of the array.
+	 * @param policy the policy of the rope.
+	 */
+	public FlatCharArrayRope(final char[] sequence, final int offset, final int length, final RopePolicy policy) {
 		if (length > sequence.length)
 			throw new IllegalArgumentException("Length must be less than " + sequence.length);
 		this.sequence = new char[length];
 		System.arraycopy(sequence, offset, this.sequence, 0, length);
+		this.policy = policy;
 	}
 
 	public char charAt(final int index) {
 		return this.sequence[index];
 	}
 
+	public RopeCursor cursor(final int start) {
+		if (start < 0 || start > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		return new RopeCursor() {
+			int current = start;
+			public boolean hasNext() {
+				return this.current < FlatCharArrayRope.this.length();
+			}
+
+			public boolean hasPrevious() {
+				return this.current > 0;
+			}
+
+			public char nextChar() {
+				if (this.current >= FlatCharArrayRope.this.length())
+					throw new IndexOutOfBoundsException("Rope index out of range: " + this.current);
+				return FlatCharArrayRope.this.sequence[this.current++];
+			}
+
+			public char prevChar() {
+				if (this.current <= 0)
+					throw new IndexOutOfBoundsException("Rope index out of range: -1");
+				return FlatCharArrayRope.this.sequence[--this.current];
+			}
+
+			public int position() {
+				return this.current;
+			}
+
+			public void seek(final int position) {
+				if (position < 0 || position > FlatCharArrayRope.this.length())
+					throw new IndexOutOfBoundsException("Rope index out of range: " + position);
+				this.current = position;
+			}
+		};
+	}
+
 	@Override
 	public byte depth() {
 		return 0;
 	}
 
+	public boolean forEachChunk(final int start, final int end, final ChunkConsumer consumer) {
+		this.checkRange(start, end);
+		return start == end || consumer.accept(this.sequence, start, end - start);
+	}
+
+	/**
+	 * Returns the array backing this rope, which must not be modified.
+	 * @return the backing array.
+	 */
+	char[] getSequence() {
+		return this.sequence;
+	}
+
+	@Override
+	int hash(final int start, final int end) {
+		int hash = 0;
+		for (int j=start; j<end; ++j)
+			hash = 31 * hash + this.sequence[j];
+		return hash;
+	}
+
+	public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+		this.checkGetChars(srcBegin, srcEnd, dst, dstBegin);
+		System.arraycopy(this.sequence, srcBegin, dst, dstBegin, srcEnd - srcBegin);
+	}
+
+	public RopePolicy getPolicy() {
+		return this.policy;
+	}
+
 	/*
 	 * Implementation Note: This is a reproduction of the AbstractRope
 	 * indexOf implementation. Calls to charAt have been replaced
@@ -96,51 +182,35 @@ public final class FlatCharArrayRope extends AbstractRope implements FlatRope {
 		return -1;
 	}
 
+	/*
+	 * Implementation Note: The pattern is matched directly against the
+	 * backing array rather than through charAt.
+	 */
+	@Override
+	int indexOf(final RopePattern pattern, final int fromIndex, final int toIndex) {
+		return pattern.indexOf(this.sequence, fromIndex, toIndex);
+	}
+
 	/*
 	 * Implementation Note: This is a reproduction of the AbstractRope
-	 * indexOf implementation. Calls to charAt have been replaced
+	 * lastIndexOf implementation. Calls to charAt have been replaced
 	 * with direct array access to improve speed.
 	 */
 	@Override
-	public int indexOf(final CharSequence sequence, final int fromIndex) {
-		// Implementation of Boyer-Moore-Horspool algorithm with
-		// special support for unicode.
-
-		// step 0. sanity check.
-		final int length = sequence.length();
-		if (length == 0)
-			return -1;
-		if (length == 1)
-			return this.indexOf(sequence.charAt(0), fromIndex);
-
-		final int[] bcs = new int[256]; // bad character shift
-		Arrays.fill(bcs, length);
-
-		// step 1. preprocessing.
-		for (int j=0; j<length-1; ++j) {
-			final char c = sequence.charAt(j);
-			final int l = (c & 0xFF);
-			bcs[l] = Math.min(length - j - 1, bcs[l]);
-		}
-
-		// step 2. search.
-		for (int j=fromIndex+length-1; j<this.length();) {
-			int x=j, y=length-1;
-			while (true) {
-				if (sequence.charAt(y) != this.sequence[x]) {
-					j += bcs[(this.sequence[j] & 0xFF)];
-					break;
-				}
-				if (y == 0)
-					return x;
-				--x; --y;
-			}
-
-		}
-
+	public int lastIndexOf(final char ch, final int fromIndex) {
+		if (fromIndex < 0 || fromIndex >= this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + fromIndex);
+		for (int j=fromIndex; j>=0; --j)
+			if (this.sequence[j] == ch)
+				return j;
 		return -1;
 	}
 
+	@Override
+	int lastIndexOf(final RopePattern pattern, final int fromIndex, final int toIndex) {
+		return pattern.lastIndexOf(this.sequence, fromIndex, toIndex);
+	}
+
 	public Iterator<Character> iterator(final int start) {
 		if (start < 0 || start > this.length())
 			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
@@ -187,11 +257,32 @@ public final class FlatCharArrayRope extends AbstractRope implements FlatRope {
 		};
 	}
 
+	/*
+	 * Implementation Note: The newline and surrogate pair offsets of a
+	 * flat rope are computed once and cached, so that substrings of it can
+	 * be indexed by binary search.
+	 */
+	@Override
+	int[] newlines() {
+		int[] newlines = this.newlines;
+		if (newlines == null)
+			this.newlines = newlines = super.newlines();
+		return newlines;
+	}
+
+	@Override
+	int[] surrogatePairs() {
+		int[] surrogatePairs = this.surrogatePairs;
+		if (surrogatePairs == null)
+			this.surrogatePairs = surrogatePairs = super.surrogatePairs();
+		return surrogatePairs;
+	}
+
 	public Rope subSequence(final int start, final int end) {
 		if (start == 0 && end == this.length())
 			return this;
-		if (end - start < 16) {
-			return new FlatCharArrayRope(this.sequence, start, end-start);
+		if (end - start < this.policy.getArrayCopyLength()) {
+			return new FlatCharArrayRope(this.sequence, start, end-start, this.policy);
 		} else {
 			return new SubstringRope(this, start, end-start);
 		}
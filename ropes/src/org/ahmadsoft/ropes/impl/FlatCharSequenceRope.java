@@ -24,11 +24,15 @@ package org.ahmadsoft.ropes.impl;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.ahmadsoft.ropes.ChunkConsumer;
 import org.ahmadsoft.ropes.Rope;
+import org.ahmadsoft.ropes.RopeCursor;
+import org.ahmadsoft.ropes.RopePolicy;
 
 /**
  * A rope constructed from an underlying character sequence.
@@ -37,24 +41,110 @@ import org.ahmadsoft.ropes.Rope;
 public final class FlatCharSequenceRope extends AbstractRope implements FlatRope {
 
 	private final CharSequence sequence;
+	private final RopePolicy policy;
+	private volatile int[] newlines;
+	private volatile int[] surrogatePairs;
 
 	/**
 	 * Constructs a new rope from an underlying character sequence.
 	 * @param sequence
 	 */
 	public FlatCharSequenceRope(final CharSequence sequence) {
+		this(sequence, RopePolicy.DEFAULT);
+	}
+
+	/**
+	 * Constructs a new rope from an underlying character sequence, with
+	 * the specified policy.
+	 * @param sequence the underlying character sequence.
+	 * @param policy the policy of the rope.
+	 */
+	public FlatCharSequenceRope(final CharSequence sequence, final RopePolicy policy) {
 		this.sequence = sequence;
+		this.policy = policy;
 	}
 
 	public char charAt(final int index) {
 		return this.sequence.charAt(index);
 	}
 
+	public RopeCursor cursor(final int start) {
+		if (start < 0 || start > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		return new RopeCursor() {
+			int current = start;
+			public boolean hasNext() {
+				return this.current < FlatCharSequenceRope.this.length();
+			}
+
+			public boolean hasPrevious() {
+				return this.current > 0;
+			}
+
+			public char nextChar() {
+				if (this.current >= FlatCharSequenceRope.this.length())
+					throw new IndexOutOfBoundsException("Rope index out of range: " + this.current);
+				return FlatCharSequenceRope.this.sequence.charAt(this.current++);
+			}
+
+			public char prevChar() {
+				if (this.current <= 0)
+					throw new IndexOutOfBoundsException("Rope index out of range: -1");
+				return FlatCharSequenceRope.this.sequence.charAt(--this.current);
+			}
+
+			public int position() {
+				return this.current;
+			}
+
+			public void seek(final int position) {
+				if (position < 0 || position > FlatCharSequenceRope.this.length())
+					throw new IndexOutOfBoundsException("Rope index out of range: " + position);
+				this.current = position;
+			}
+		};
+	}
+
 	@Override
 	public byte depth() {
 		return 0;
 	}
 
+	public boolean forEachChunk(final int start, final int end, final ChunkConsumer consumer) {
+		this.checkRange(start, end);
+		return start == end || consumer.accept(this.sequence, start, end - start);
+	}
+
+	@Override
+	int hash(final int start, final int end) {
+		if (this.sequence instanceof String && start == 0 && end == this.sequence.length())
+			return this.sequence.hashCode();
+		int hash = 0;
+		for (int j=start; j<end; ++j)
+			hash = 31 * hash + this.sequence.charAt(j);
+		return hash;
+	}
+
+	public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+		this.checkGetChars(srcBegin, srcEnd, dst, dstBegin);
+		if (this.sequence instanceof String) {	// optimization for String
+			((String) this.sequence).getChars(srcBegin, srcEnd, dst, dstBegin);
+		} else if (this.sequence instanceof StringBuilder) {
+			((StringBuilder) this.sequence).getChars(srcBegin, srcEnd, dst, dstBegin);
+		} else if (this.sequence instanceof StringBuffer) {
+			((StringBuffer) this.sequence).getChars(srcBegin, srcEnd, dst, dstBegin);
+		} else if (this.sequence instanceof RepeatedCharacterSequence) {
+			Arrays.fill(dst, dstBegin, dstBegin + srcEnd - srcBegin, ((RepeatedCharacterSequence) this.sequence).getCharacter());
+		} else {
+			for (int j=srcBegin, k=dstBegin; j<srcEnd; ++j, ++k)
+				dst[k] = this.sequence.charAt(j);
+		}
+	}
+
+	public RopePolicy getPolicy() {
+		return this.policy;
+	}
+
 	public Iterator<Character> iterator(final int start) {
 		if (start < 0 || start > this.length())
 			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
@@ -107,11 +197,32 @@ public final class FlatCharSequenceRope extends AbstractRope implements FlatRope
 		};
 	}
 
+	/*
+	 * Implementation Note: The newline and surrogate pair offsets of a
+	 * flat rope are computed once and cached, so that substrings of it can
+	 * be indexed by binary search.
+	 */
+	@Override
+	int[] newlines() {
+		int[] newlines = this.newlines;
+		if (newlines == null)
+			this.newlines = newlines = super.newlines();
+		return newlines;
+	}
+
+	@Override
+	int[] surrogatePairs() {
+		int[] surrogatePairs = this.surrogatePairs;
+		if (surrogatePairs == null)
+			this.surrogatePairs = surrogatePairs = super.surrogatePairs();
+		return surrogatePairs;
+	}
+
 	public Rope subSequence(final int start, final int end) {
 		if (start == 0 && end == this.length())
 			return this;
-		if (end - start < 8 || this.sequence instanceof String /* special optimization for String */) {
-			return new FlatCharSequenceRope(this.sequence.subSequence(start, end));
+		if (end - start < this.policy.getSequenceCopyLength() || this.sequence instanceof String /* special optimization for String */) {
+			return new FlatCharSequenceRope(this.sequence.subSequence(start, end), this.policy);
 		} else {
 			return new SubstringRope(this, start, end-start);
 		}
@@ -0,0 +1,505 @@
+/*
+ *  FlatUtf8Rope.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.ahmadsoft.ropes.ChunkConsumer;
+import org.ahmadsoft.ropes.Rope;
+import org.ahmadsoft.ropes.RopeCursor;
+import org.ahmadsoft.ropes.RopePolicy;
+
+/**
+ * A rope backed by UTF-8 encoded bytes, which are decoded on demand.
+ * Random access goes through a sparse index recording the byte offset
+ * of every 64th character, built on first use; sequential access
+ * through cursors and iterators decodes the bytes in order. The bytes
+ * can be written to a stream without being re-encoded.
+ * @author Amin Ahmad
+ */
+public final class FlatUtf8Rope extends AbstractRope implements FlatRope {
+
+	/** The number of characters between entries of the index. */
+	private static final int INDEX_INTERVAL = 64;
+	/** The number of characters decoded at a time for chunk consumers. */
+	private static final int CHUNK_LENGTH = 1024;
+	/** The number of bytes of a mapped file in each leaf. */
+	static final int MAP_WINDOW_LENGTH = 1 << 16;
+	/** The number of bytes of a file mapped at a time. */
+	private static final long MAP_REGION_LENGTH = 1 << 30;
+
+	private final ByteBuffer bytes;
+	private final int length;
+	private final RopePolicy policy;
+	/**
+	 * The byte offset of the code point holding every
+	 * <code>INDEX_INTERVAL</code>th character, or its complement if the
+	 * character is the low surrogate of the code point. Built on first use.
+	 */
+	private volatile int[] index;
+	private volatile int[] newlines;
+	private volatile int[] surrogatePairs;
+
+	private FlatUtf8Rope(final ByteBuffer bytes, final int length, final RopePolicy policy) {
+		this.bytes = bytes;
+		this.length = length;
+		this.policy = policy;
+	}
+
+	/**
+	 * Returns a rope over UTF-8 encoded bytes. The bytes between the
+	 * position and the limit of the buffer are used without being copied,
+	 * and must not be modified afterwards. Malformed input is decoded
+	 * with replacement characters into a character rope instead, as by
+	 * <code>new String(bytes, UTF_8)</code>.
+	 * @param bytes the UTF-8 encoded bytes.
+	 * @param policy the policy of the rope.
+	 * @return a rope holding the decoded characters.
+	 */
+	public static Rope build(final ByteBuffer bytes, final RopePolicy policy) {
+		final ByteBuffer b = bytes.slice();
+		final int length = FlatUtf8Rope.decodedLength(b);
+		if (length < 0)
+			return new FlatCharSequenceRope(StandardCharsets.UTF_8.decode(b).toString(), policy);
+		return new FlatUtf8Rope(b, length, policy);
+	}
+
+	/**
+	 * Returns a rope over the UTF-8 contents of a file, which is mapped
+	 * into memory rather than read. The rope is a balanced concatenation
+	 * of leaves over consecutive windows of the mapping, each of which is
+	 * decoded on demand; edits to the rope share the unedited windows.
+	 * The file is scanned once, to validate it and count its characters.
+	 * The file must not be modified while the rope is in use.
+	 * @param channel a channel open for reading the file.
+	 * @param policy the policy of the rope.
+	 * @return a rope holding the decoded contents of the file.
+	 * @throws IOException if the file cannot be mapped.
+	 * @throws IllegalArgumentException if the file holds more characters
+	 * than a rope can.
+	 */
+	public static Rope map(final FileChannel channel, final RopePolicy policy) throws IOException {
+		final List<Rope> leaves = new ArrayList<Rope>();
+		final long size = channel.size();
+		for (long position=0; position<size; ) {
+			final ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+				Math.min(size - position, FlatUtf8Rope.MAP_REGION_LENGTH));
+			int start = 0;
+			while (start < region.limit()) {
+				int end = Math.min(start + FlatUtf8Rope.MAP_WINDOW_LENGTH, region.limit());
+				// the last window of a region is mapped again with the next.
+				if (end == region.limit() && position + end < size)
+					break;
+				// end windows on a code point boundary, unless the bytes
+				// are malformed.
+				for (int j=0; j<3 && end < region.limit() && (region.get(end) & 0xc0) == 0x80; ++j)
+					--end;
+				region.limit(end).position(start);
+				leaves.add(FlatUtf8Rope.build(region, policy));
+				region.limit(region.capacity());
+				start = end;
+			}
+			position += start;
+		}
+		long length = 0;
+		for (final Rope leaf: leaves)
+			length += leaf.length();
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("File too large for a rope: " + length + " characters");
+		if (leaves.isEmpty())
+			return new FlatCharSequenceRope("", policy);
+		return RopeUtilities.INSTANCE.concatenate(leaves.toArray(new Rope[leaves.size()]), 0, leaves.size());
+	}
+
+	/**
+	 * Returns the number of characters encoded by UTF-8 bytes, or -1 if
+	 * the bytes are not well-formed UTF-8. Overlong forms, surrogates and
+	 * code points above U+10FFFF are rejected, as by the UTF-8 decoder of
+	 * the platform.
+	 */
+	private static int decodedLength(final ByteBuffer b) {
+		long length = 0;
+		final int limit = b.limit();
+		for (int p=0; p<limit; ) {
+			final int b0 = b.get(p) & 0xff;
+			if (b0 < 0x80) {
+				++p;
+				++length;
+				continue;
+			}
+			final int n = FlatUtf8Rope.sequenceLength(b0);
+			if (n < 0 || p + n > limit)
+				return -1;
+			final int b1 = b.get(p + 1) & 0xff;
+			final int lo = (b0 == 0xe0 ? 0xa0: b0 == 0xf0 ? 0x90: 0x80);
+			final int hi = (b0 == 0xed ? 0x9f: b0 == 0xf4 ? 0x8f: 0xbf);
+			if (b1 < lo || b1 > hi)
+				return -1;
+			for (int j=2; j<n; ++j)
+				if ((b.get(p + j) & 0xc0) != 0x80)
+					return -1;
+			p += n;
+			length += (n == 4 ? 2: 1);
+		}
+		return length > Integer.MAX_VALUE ? -1: (int) length;
+	}
+
+	/**
+	 * Returns the length of the UTF-8 sequence with the specified lead
+	 * byte, or -1 if the byte cannot lead a sequence.
+	 */
+	private static int sequenceLength(final int b0) {
+		if (b0 < 0x80)
+			return 1;
+		if (b0 < 0xc2)
+			return -1;
+		if (b0 < 0xe0)
+			return 2;
+		if (b0 < 0xf0)
+			return 3;
+		if (b0 < 0xf5)
+			return 4;
+		return -1;
+	}
+
+	/**
+	 * Decodes the code point starting at the specified byte offset.
+	 */
+	private int decode(final int p) {
+		final int b0 = this.bytes.get(p) & 0xff;
+		if (b0 < 0x80)
+			return b0;
+		if (b0 < 0xe0)
+			return (b0 & 0x1f) << 6 | (this.bytes.get(p + 1) & 0x3f);
+		if (b0 < 0xf0)
+			return (b0 & 0x0f) << 12 | (this.bytes.get(p + 1) & 0x3f) << 6 | (this.bytes.get(p + 2) & 0x3f);
+		return (b0 & 0x07) << 18 | (this.bytes.get(p + 1) & 0x3f) << 12
+			| (this.bytes.get(p + 2) & 0x3f) << 6 | (this.bytes.get(p + 3) & 0x3f);
+	}
+
+	private int[] index() {
+		int[] index = this.index;
+		if (index == null) {
+			index = new int[this.length / FlatUtf8Rope.INDEX_INTERVAL + 1];
+			int k = 0;
+			for (int p=0, c=0; p<this.bytes.limit(); ) {
+				final int n = FlatUtf8Rope.sequenceLength(this.bytes.get(p) & 0xff);
+				final int chars = (n == 4 ? 2: 1);
+				for (; k * FlatUtf8Rope.INDEX_INTERVAL < c + chars; ++k)
+					index[k] = (k * FlatUtf8Rope.INDEX_INTERVAL == c ? p: ~p);
+				p += n;
+				c += chars;
+			}
+			if (k < index.length)
+				index[k] = this.bytes.limit();
+			this.index = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the byte offset of the code point holding the specified
+	 * character, or its complement if the character is the low surrogate
+	 * of the code point. An index equal to the length of this rope is
+	 * located at the end of the bytes.
+	 */
+	private int locate(final int index) {
+		final int entry = this.index()[index / FlatUtf8Rope.INDEX_INTERVAL];
+		int p = (entry < 0 ? ~entry: entry);
+		int c = index / FlatUtf8Rope.INDEX_INTERVAL * FlatUtf8Rope.INDEX_INTERVAL - (entry < 0 ? 1: 0);
+		while (p < this.bytes.limit()) {
+			final int n = FlatUtf8Rope.sequenceLength(this.bytes.get(p) & 0xff);
+			final int chars = (n == 4 ? 2: 1);
+			if (index < c + chars)
+				break;
+			p += n;
+			c += chars;
+		}
+		return (index == c ? p: ~p);
+	}
+
+	public char charAt(final int index) {
+		if (index < 0 || index >= this.length)
+			throw new IndexOutOfBoundsException("Rope index out of range: " + index);
+		final int location = this.locate(index);
+		if (location < 0)
+			return Character.lowSurrogate(this.decode(~location));
+		final int codePoint = this.decode(location);
+		return (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT ? (char) codePoint: Character.highSurrogate(codePoint));
+	}
+
+	public RopeCursor cursor(final int start) {
+		if (start < 0 || start > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		return new RopeCursor() {
+			int current = start;
+			int location = FlatUtf8Rope.this.locate(start);
+			public boolean hasNext() {
+				return this.current < FlatUtf8Rope.this.length;
+			}
+
+			public boolean hasPrevious() {
+				return this.current > 0;
+			}
+
+			public char nextChar() {
+				if (this.current >= FlatUtf8Rope.this.length)
+					throw new IndexOutOfBoundsException("Rope index out of range: " + this.current);
+				++this.current;
+				if (this.location < 0) {
+					final int p = ~this.location;
+					this.location = p + 4;
+					return Character.lowSurrogate(FlatUtf8Rope.this.decode(p));
+				}
+				final int codePoint = FlatUtf8Rope.this.decode(this.location);
+				if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+					this.location = ~this.location;
+					return Character.highSurrogate(codePoint);
+				}
+				this.location += FlatUtf8Rope.sequenceLength(FlatUtf8Rope.this.bytes.get(this.location) & 0xff);
+				return (char) codePoint;
+			}
+
+			public char prevChar() {
+				if (this.current <= 0)
+					throw new IndexOutOfBoundsException("Rope index out of range: -1");
+				--this.current;
+				if (this.location < 0) {
+					this.location = ~this.location;
+					return Character.highSurrogate(FlatUtf8Rope.this.decode(this.location));
+				}
+				int p = this.location - 1;
+				while ((FlatUtf8Rope.this.bytes.get(p) & 0xc0) == 0x80)
+					--p;
+				final int codePoint = FlatUtf8Rope.this.decode(p);
+				if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+					this.location = ~p;
+					return Character.lowSurrogate(codePoint);
+				}
+				this.location = p;
+				return (char) codePoint;
+			}
+
+			public int position() {
+				return this.current;
+			}
+
+			public void seek(final int position) {
+				if (position < 0 || position > FlatUtf8Rope.this.length)
+					throw new IndexOutOfBoundsException("Rope index out of range: " + position);
+				this.current = position;
+				this.location = FlatUtf8Rope.this.locate(position);
+			}
+		};
+	}
+
+	@Override
+	public byte depth() {
+		return 0;
+	}
+
+	/*
+	 * Implementation Note: The bytes are the encoding of this rope in
+	 * UTF-8, and are written without being re-encoded.
+	 */
+	@Override
+	ByteBuffer encoded(final Charset charset) {
+		return (StandardCharsets.UTF_8.equals(charset) ? this.bytes.duplicate(): null);
+	}
+
+	/*
+	 * Implementation Note: The characters are decoded into a scratch
+	 * buffer, so that consumers see character array chunks.
+	 */
+	public boolean forEachChunk(final int start, final int end, final ChunkConsumer consumer) {
+		this.checkRange(start, end);
+		final char[] chunk = new char[Math.min(end - start, FlatUtf8Rope.CHUNK_LENGTH)];
+		for (int j=start; j<end; j+=chunk.length) {
+			final int length = Math.min(end - j, chunk.length);
+			this.getChars(j, j + length, chunk, 0);
+			if (!consumer.accept(chunk, 0, length))
+				return false;
+		}
+		return true;
+	}
+
+	public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+		this.checkGetChars(srcBegin, srcEnd, dst, dstBegin);
+		final RopeCursor i = this.cursor(srcBegin);
+		for (int j=dstBegin; j<dstBegin + srcEnd - srcBegin; ++j)
+			dst[j] = i.nextChar();
+	}
+
+	public RopePolicy getPolicy() {
+		return this.policy;
+	}
+
+	/*
+	 * Returns a view of this rope that remembers the last position read,
+	 * so that nearby characters are decoded without consulting the index.
+	 */
+	@Override
+	public CharSequence getForSequentialAccess() {
+		return new CharSequence() {
+			final RopeCursor cursor = FlatUtf8Rope.this.cursor();
+
+			public char charAt(final int index) {
+				final int position = this.cursor.position();
+				if (index < position || index - position > FlatUtf8Rope.INDEX_INTERVAL)
+					this.cursor.seek(index);
+				else
+					while (this.cursor.position() < index)
+						this.cursor.nextChar();
+				if (!this.cursor.hasNext())
+					throw new IndexOutOfBoundsException("Rope index out of range: " + index);
+				final char c = this.cursor.nextChar();
+				this.cursor.prevChar();
+				return c;
+			}
+
+			public int length() {
+				return FlatUtf8Rope.this.length;
+			}
+
+			public CharSequence subSequence(final int start, final int end) {
+				return FlatUtf8Rope.this.subSequence(start, end);
+			}
+
+			@Override
+			public String toString() {
+				return FlatUtf8Rope.this.toString();
+			}
+		};
+	}
+
+	public Iterator<Character> iterator(final int start) {
+		if (start < 0 || start > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		return new Iterator<Character>() {
+			final RopeCursor cursor = FlatUtf8Rope.this.cursor(start);
+			public boolean hasNext() {
+				return this.cursor.hasNext();
+			}
+
+			public Character next() {
+				return this.cursor.nextChar();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException("Rope iterator is read-only.");
+			}
+		};
+	}
+
+	public int length() {
+		return this.length;
+	}
+
+	/*
+	 * Implementation Note: The newline and surrogate pair offsets of a
+	 * flat rope are computed once and cached, so that substrings of it can
+	 * be indexed by binary search.
+	 */
+	@Override
+	int[] newlines() {
+		int[] newlines = this.newlines;
+		if (newlines == null)
+			this.newlines = newlines = super.newlines();
+		return newlines;
+	}
+
+	public Rope reverse() {
+		return new ReverseRope(this);
+	}
+
+	public Iterator<Character> reverseIterator(final int start) {
+		if (start < 0 || start > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		return new Iterator<Character>() {
+			final RopeCursor cursor = FlatUtf8Rope.this.cursor(FlatUtf8Rope.this.length - start);
+			public boolean hasNext() {
+				return this.cursor.hasPrevious();
+			}
+
+			public Character next() {
+				return this.cursor.prevChar();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException("Rope iterator is read-only.");
+			}
+		};
+	}
+
+	public Rope subSequence(final int start, final int end) {
+		if (start == 0 && end == this.length())
+			return this;
+		if (end - start < this.policy.getArrayCopyLength()) {
+			final char[] sequence = new char[end - start];
+			this.getChars(start, end, sequence, 0);
+			return RopeUtilities.INSTANCE.flat(sequence, 0, sequence.length, this.policy);
+		} else {
+			return new SubstringRope(this, start, end-start);
+		}
+	}
+
+	@Override
+	int[] surrogatePairs() {
+		int[] surrogatePairs = this.surrogatePairs;
+		if (surrogatePairs == null)
+			this.surrogatePairs = surrogatePairs = super.surrogatePairs();
+		return surrogatePairs;
+	}
+
+	@Override
+	public String toString() {
+		return StandardCharsets.UTF_8.decode(this.bytes.duplicate()).toString();
+	}
+
+	public String toString(final int offset, final int length) {
+		final char[] sequence = new char[length];
+		this.getChars(offset, offset + length, sequence, 0);
+		return new String(sequence);
+	}
+
+	public void write(final Writer out) throws IOException {
+		this.write(out, 0, this.length());
+	}
+
+	public void write(final Writer out, final int offset, final int length) throws IOException {
+		final char[] buffer = new char[Math.min(length, FlatUtf8Rope.CHUNK_LENGTH)];
+		for (int j=offset; j<offset + length; j+=buffer.length) {
+			final int n = Math.min(offset + length - j, buffer.length);
+			this.getChars(j, j + n, buffer, 0);
+			out.write(buffer, 0, n);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ *  IndexOfTask.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes.impl;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ahmadsoft.ropes.RopePattern;
+
+/**
+ * A fork-join search for the first occurrence of a string in a large
+ * rope. The range of candidate start indices is split at concatenation
+ * boundaries until each task covers a run of leaves small enough to
+ * search sequentially. Each task reads up to <code>length - 1</code>
+ * characters past the end of its range, so occurrences spanning a seam
+ * are found by the task on their left.
+ * <p>
+ * Tasks on the right are abandoned as soon as an occurrence to their
+ * left is known.
+ *
+ * @author Amin Ahmad
+ */
+final class IndexOfTask extends RecursiveTask<Integer> {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Ranges shorter than this are searched sequentially. */
+	private static final int SEQUENTIAL_SEARCH_LENGTH = 1 << 16;
+
+	private final AbstractRope rope;
+	private final RopePattern pattern;
+	private final int fromIndex;
+	private final int toIndex;
+	/** The leftmost occurrence found so far by any task. */
+	private final AtomicInteger found;
+
+	/**
+	 * Returns the index of the first occurrence of the specified pattern
+	 * in a rope, searching in parallel.
+	 * @param rope the rope to search.
+	 * @param pattern the pattern to find.
+	 * @param fromIndex the index to start searching from.
+	 * @return the index of the first occurrence, or -1 if there is none.
+	 */
+	static int indexOf(final AbstractRope rope, final RopePattern pattern, final int fromIndex) {
+		final int toIndex = rope.length() - pattern.length() + 1;
+		if (fromIndex >= toIndex)
+			return -1;
+		return ForkJoinPool.commonPool().invoke(
+			new IndexOfTask(rope, pattern, fromIndex, toIndex, new AtomicInteger(Integer.MAX_VALUE))).intValue();
+	}
+
+	private IndexOfTask(final AbstractRope rope, final RopePattern pattern, final int fromIndex, final int toIndex, final AtomicInteger found) {
+		this.rope = rope;
+		this.pattern = pattern;
+		this.fromIndex = fromIndex;
+		this.toIndex = toIndex;
+		this.found = found;
+	}
+
+	@Override
+	protected Integer compute() {
+		if (this.fromIndex >= this.found.get())
+			return -1;
+		if (this.toIndex - this.fromIndex <= IndexOfTask.SEQUENTIAL_SEARCH_LENGTH) {
+			final int result = this.rope.indexOf(this.pattern, this.fromIndex, this.toIndex + this.pattern.length() - 1);
+			if (result >= 0) {
+				for (int f = this.found.get(); result < f && !this.found.compareAndSet(f, result); f = this.found.get())
+					;
+			}
+			return result;
+		}
+
+		final int split = RopeUtilities.INSTANCE.splitPoint(this.rope, this.fromIndex, this.toIndex);
+		final IndexOfTask right = new IndexOfTask(this.rope, this.pattern, split, this.toIndex, this.found);
+		right.fork();
+		final int result = new IndexOfTask(this.rope, this.pattern, this.fromIndex, split, this.found).compute().intValue();
+		if (result >= 0) {
+			right.cancel(false);
+			return result;
+		}
+		return right.join();
+	}
+}
@@ -26,7 +26,10 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.Iterator;
 
+import org.ahmadsoft.ropes.ChunkConsumer;
 import org.ahmadsoft.ropes.Rope;
+import org.ahmadsoft.ropes.RopeCursor;
+import org.ahmadsoft.ropes.RopePolicy;
 
 /**
  * A rope representing the reversal of character sequence.
@@ -35,14 +38,19 @@ import org.ahmadsoft.ropes.Rope;
  */
 public final class ReverseRope extends AbstractRope {
 
+	/** The size of the scratch buffer used to hand out reversed chunks. */
+	private static final int CHUNK_LENGTH = 1024;
+
 	private final Rope rope;
+	private volatile int[] surrogatePairs;
 
 	/**
 	 * Constructs a new rope from an underlying rope.
 	 * <p>
 	 * Balancing algorithm works optimally when only FlatRopes or
 	 * SubstringRopes are supplied. Framework must guarantee this
-	 * as no runtime check is performed.
+	 * as no runtime check is performed. Surrogate pairs of the
+	 * underlying rope keep their high surrogate first.
 	 * @param rope
 	 */
 	public ReverseRope(final Rope rope) {
@@ -50,7 +58,52 @@ public final class ReverseRope extends AbstractRope {
 	}
 
 	public char charAt(final int index) {
-		return this.rope.charAt(this.length() - index - 1);
+		final int offset = this.length() - index - 1;
+		return this.inOrder(offset, this.rope.charAt(offset));
+	}
+
+	/*
+	 * Implementation Note: The cursor is backed by a cursor over the
+	 * underlying rope moving in the opposite direction, so that the
+	 * underlying rope is traversed rather than indexed.
+	 */
+	public RopeCursor cursor(final int start) {
+		if (start < 0 || start > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		return new RopeCursor() {
+			final RopeCursor u = ReverseRope.this.rope.cursor(ReverseRope.this.length() - start);
+			public boolean hasNext() {
+				return this.u.hasPrevious();
+			}
+
+			public boolean hasPrevious() {
+				return this.u.hasNext();
+			}
+
+			public char nextChar() {
+				if (!this.u.hasPrevious())
+					throw new IndexOutOfBoundsException("Rope index out of range: " + ReverseRope.this.length());
+				final char c = this.u.prevChar();
+				return ReverseRope.this.inOrder(this.u.position(), c);
+			}
+
+			public char prevChar() {
+				if (!this.u.hasNext())
+					throw new IndexOutOfBoundsException("Rope index out of range: -1");
+				final char c = this.u.nextChar();
+				return ReverseRope.this.inOrder(this.u.position() - 1, c);
+			}
+
+			public int position() {
+				return ReverseRope.this.length() - this.u.position();
+			}
+
+			public void seek(final int position) {
+				if (position < 0 || position > ReverseRope.this.length())
+					throw new IndexOutOfBoundsException("Rope index out of range: " + position);
+				this.u.seek(ReverseRope.this.length() - position);
+			}
+		};
 	}
 
 	@Override
@@ -58,6 +111,66 @@ public final class ReverseRope extends AbstractRope {
 		return RopeUtilities.INSTANCE.depth(this.rope);
 	}
 
+	/*
+	 * Implementation Note: The characters of a reverse rope are not
+	 * stored contiguously in forward order anywhere, so chunks are
+	 * reversed into a scratch buffer with getChars.
+	 */
+	public boolean forEachChunk(final int start, final int end, final ChunkConsumer consumer) {
+		this.checkRange(start, end);
+		if (start == end)
+			return true;
+		final char[] buffer = new char[Math.min(end - start, ReverseRope.CHUNK_LENGTH)];
+		for (int j=start; j<end; j+=buffer.length) {
+			final int length = Math.min(buffer.length, end - j);
+			this.getChars(j, j + length, buffer, 0);
+			if (!consumer.accept(buffer, 0, length))
+				return false;
+		}
+		return true;
+	}
+
+	public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+		this.checkGetChars(srcBegin, srcEnd, dst, dstBegin);
+		this.rope.getChars(this.length() - srcEnd, this.length() - srcBegin, dst, dstBegin);
+		for (int x=dstBegin, y=dstBegin + srcEnd - srcBegin - 1; x<y; ++x, --y) {
+			final char c = dst[x];
+			dst[x] = dst[y];
+			dst[y] = c;
+		}
+		for (int x=dstBegin, offset=this.length() - srcBegin - 1; offset>=this.length() - srcEnd; ++x, --offset)
+			dst[x] = this.inOrder(offset, dst[x]);
+	}
+
+	public RopePolicy getPolicy() {
+		return RopeUtilities.INSTANCE.policy(this.rope);
+	}
+
+	/*
+	 * Implementation Note: The characters of the underlying rope are
+	 * reversed one by one, except that the halves of a surrogate pair are
+	 * swapped back. The pairs are looked up in the cached pair offsets of
+	 * the underlying rope, and only for surrogate characters.
+	 */
+	private char inOrder(final int offset, final char c) {
+		if (Character.isLowSurrogate(c) && this.isSurrogatePair(offset - 1))
+			return this.rope.charAt(offset - 1);
+		if (Character.isHighSurrogate(c) && this.isSurrogatePair(offset))
+			return this.rope.charAt(offset + 1);
+		return c;
+	}
+
+	/**
+	 * Returns whether a surrogate pair of the underlying rope starts at
+	 * the specified offset.
+	 * @param offset the offset in the underlying rope.
+	 * @return <code>true</code> if a surrogate pair starts at the offset.
+	 */
+	private boolean isSurrogatePair(final int offset) {
+		return offset >= 0 && offset + 1 < this.length()
+			&& RopeUtilities.INSTANCE.surrogatePairsBefore(this.rope, offset + 2) > RopeUtilities.INSTANCE.surrogatePairsBefore(this.rope, offset + 1);
+	}
+
 	public Iterator<Character> iterator(final int start) {
 		if (start < 0 || start > this.length())
 			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
@@ -81,8 +194,40 @@ public final class ReverseRope extends AbstractRope {
 		return this.rope.length();
 	}
 
+	/*
+	 * Implementation Note: The newline at offset p of the underlying rope
+	 * is at offset length - 1 - p of this rope, so newlines are counted
+	 * from the other end.
+	 */
+	@Override
+	int newlineCount() {
+		return RopeUtilities.INSTANCE.newlineCount(this.rope);
+	}
+
+	@Override
+	int newlineOffset(final int n) {
+		return this.length() - 1 - RopeUtilities.INSTANCE.newlineOffset(this.rope, this.newlineCount() - 1 - n);
+	}
+
+	@Override
+	int newlinesBefore(final int offset) {
+		return this.newlineCount() - RopeUtilities.INSTANCE.newlinesBefore(this.rope, this.length() - offset);
+	}
+
 	public Rope reverse() {
-		return this.rope;
+		// a lone low surrogate followed by a lone high surrogate pairs up
+		// when reversed, and such a pair stays in order when reversed back.
+		if (this.surrogatePairCount() == RopeUtilities.INSTANCE.surrogatePairCount(this.rope))
+			return this.rope;
+		return new ReverseRope(this);
+	}
+
+	@Override
+	int[] surrogatePairs() {
+		int[] surrogatePairs = this.surrogatePairs;
+		if (surrogatePairs == null)
+			this.surrogatePairs = surrogatePairs = super.surrogatePairs();
+		return surrogatePairs;
 	}
 
 	public Iterator<Character> reverseIterator(final int start) {
@@ -107,7 +252,20 @@ public final class ReverseRope extends AbstractRope {
 	public Rope subSequence(final int start, final int end) {
 		if (start == 0 && end == this.length())
 			return this;
-		return this.rope.subSequence(this.length() - end, this.length() - start).reverse();
+		int from = this.length() - end, to = this.length() - start;
+		// a surrogate pair split by either end of the range keeps its
+		// order, so the range takes the half outside the underlying range.
+		Rope head = Rope.BUILDER.build(""), tail = head;
+		if (this.isSurrogatePair(to - 1)) {
+			head = this.rope.subSequence(to, to + 1);
+			--to;
+		}
+		if (this.isSurrogatePair(from - 1)) {
+			tail = this.rope.subSequence(from - 1, from);
+			++from;
+		}
+		return RopeUtilities.INSTANCE.concatenate(
+			RopeUtilities.INSTANCE.concatenate(head, this.rope.subSequence(from, to).reverse()), tail);
 	}
 
 	public void write(final Writer out) throws IOException {
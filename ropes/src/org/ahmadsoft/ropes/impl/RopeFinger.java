@@ -0,0 +1,72 @@
+/*
+ *  RopeFinger.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes.impl;
+
+import org.ahmadsoft.ropes.Rope;
+
+/**
+ * A character sequence view of a rope for sequential and local access.
+ * A finger remembers the path from the root of the rope to the leaf it
+ * last read. Reading an index in the same leaf costs no more than
+ * reading a flat array; moving to a nearby leaf, in either direction,
+ * only climbs as far as the nearest common ancestor. This makes the
+ * finger suitable for <code>java.util.regex.Matcher</code> and for
+ * parsers that back-track over short distances.
+ * <p>
+ * A finger is not thread safe; each thread should use its own.
+ *
+ * @author Amin Ahmad
+ */
+public final class RopeFinger extends ConcatenationRopePath implements CharSequence {
+
+	/**
+	 * Creates a finger over the specified rope.
+	 * @param rope the rope to read.
+	 */
+	public RopeFinger(final Rope rope) {
+		super(rope);
+	}
+
+	@Override
+	public char charAt(final int index) {
+		if (index < this.leafStart || index >= this.leafEnd) {
+			if (index < 0 || index >= this.rope.length())
+				throw new IndexOutOfBoundsException("Rope index out of range: " + index);
+			this.locate(index);
+		}
+		return this.leaf.charAt(index - this.leafStart);
+	}
+
+	public int length() {
+		return this.rope.length();
+	}
+
+	public CharSequence subSequence(final int start, final int end) {
+		return this.rope.subSequence(start, end);
+	}
+
+	@Override
+	public String toString() {
+		return this.rope.toString();
+	}
+}
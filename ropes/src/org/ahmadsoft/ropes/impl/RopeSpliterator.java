@@ -0,0 +1,105 @@
+/*
+ *  RopeSpliterator.java
+ *  Copyright (C) 2007 Amin Ahmad.
+ *
+ *  This file is part of Java Ropes.
+ *
+ *  Java Ropes is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Java Ropes is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Java Ropes.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Amin Ahmad can be contacted at amin.ahmad@gmail.com or on the web at
+ *  www.ahmadsoft.org.
+ */
+package org.ahmadsoft.ropes.impl;
+
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+
+import org.ahmadsoft.ropes.ChunkConsumer;
+import org.ahmadsoft.ropes.Rope;
+import org.ahmadsoft.ropes.RopeCursor;
+
+/**
+ * A spliterator over the characters of a rope. Splits are made at the
+ * boundaries between the left and right halves of concatenation ropes,
+ * so a balanced rope splits into balanced halves without copying.
+ * Ranges that lie within a single leaf are split at their midpoint.
+ *
+ * @author Amin Ahmad
+ */
+final class RopeSpliterator implements Spliterator.OfInt {
+
+	/** Ranges shorter than this are not split any further. */
+	private static final int MINIMUM_SPLIT_LENGTH = 1024;
+
+	private final Rope rope;
+	private int index;
+	private final int fence;
+	private RopeCursor cursor;
+
+	RopeSpliterator(final Rope rope, final int index, final int fence) {
+		this.rope = rope;
+		this.index = index;
+		this.fence = fence;
+	}
+
+	public int characteristics() {
+		return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED
+			| Spliterator.IMMUTABLE | Spliterator.NONNULL;
+	}
+
+	public long estimateSize() {
+		return this.fence - this.index;
+	}
+
+	@Override
+	public void forEachRemaining(final IntConsumer action) {
+		if (this.index >= this.fence)
+			return;
+		this.rope.forEachChunk(this.index, this.fence, new ChunkConsumer() {
+			public boolean accept(final char[] chunk, final int offset, final int length) {
+				for (int j=offset; j<offset + length; ++j)
+					action.accept(chunk[j]);
+				return true;
+			}
+
+			public boolean accept(final CharSequence chunk, final int offset, final int length) {
+				for (int j=offset; j<offset + length; ++j)
+					action.accept(chunk.charAt(j));
+				return true;
+			}
+		});
+		this.index = this.fence;
+	}
+
+	public boolean tryAdvance(final IntConsumer action) {
+		if (this.index >= this.fence)
+			return false;
+		if (this.cursor == null)
+			this.cursor = this.rope.cursor(this.index);
+		action.accept(this.cursor.nextChar());
+		++this.index;
+		return true;
+	}
+
+	public Spliterator.OfInt trySplit() {
+		final int lo = this.index, hi = this.fence;
+		if (hi - lo < RopeSpliterator.MINIMUM_SPLIT_LENGTH)
+			return null;
+		final int mid = RopeUtilities.INSTANCE.splitPoint(this.rope, lo, hi);
+		final RopeSpliterator prefix = new RopeSpliterator(this.rope, lo, mid);
+		this.index = mid;
+		this.cursor = null;
+		return prefix;
+	}
+}
@@ -22,11 +22,24 @@
  */
 package org.ahmadsoft.ropes.impl;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.ahmadsoft.ropes.Rope;
+import org.ahmadsoft.ropes.RopeCursor;
+import org.ahmadsoft.ropes.RopePolicy;
 
 /**
  * Contains utlities for manipulating ropes.
@@ -35,62 +48,190 @@ import org.ahmadsoft.ropes.Rope;
 class RopeUtilities {
 
 	private static final long[] FIBONACCI = { 0l, 1l, 1l, 2l, 3l, 5l, 8l, 13l, 21l, 34l, 55l, 89l, 144l, 233l, 377l, 610l, 987l, 1597l, 2584l, 4181l, 6765l, 10946l, 17711l, 28657l, 46368l, 75025l, 121393l, 196418l, 317811l, 514229l, 832040l, 1346269l, 2178309l, 3524578l, 5702887l, 9227465l, 14930352l, 24157817l, 39088169l, 63245986l, 102334155l, 165580141l, 267914296l, 433494437l, 701408733l, 1134903170l, 1836311903l, 2971215073l, 4807526976l, 7778742049l, 12586269025l, 20365011074l, 32951280099l, 53316291173l, 86267571272l, 139583862445l, 225851433717l, 365435296162l, 591286729879l, 956722026041l, 1548008755920l, 2504730781961l, 4052739537881l, 6557470319842l, 10610209857723l, 17167680177565l, 27777890035288l, 44945570212853l, 72723460248141l, 117669030460994l, 190392490709135l, 308061521170129l, 498454011879264l, 806515533049393l, 1304969544928657l, 2111485077978050l, 3416454622906707l, 5527939700884757l, 8944394323791464l, 14472334024676221l, 23416728348467685l, 37889062373143906l, 61305790721611591l, 99194853094755497l, 160500643816367088l, 259695496911122585l, 420196140727489673l, 679891637638612258l, 1100087778366101931l, 1779979416004714189l, 2880067194370816120l, 4660046610375530309l, 7540113804746346429l};
-	private static final short MAX_ROPE_DEPTH = 96;
+	/**
+	 * Searches over at least this many characters are performed in
+	 * parallel. Configured with the <code>org.ahmadsoft.ropes.parallelSearchThreshold</code>
+	 * system property.
+	 */
+	static final int PARALLEL_SEARCH_THRESHOLD = Integer.getInteger("org.ahmadsoft.ropes.parallelSearchThreshold", 1 << 20).intValue();
 	private static final String SPACES = "                                                                                                                                                                                                        ";
 
 	public static RopeUtilities INSTANCE = new RopeUtilities();
 
 	/**
-	 * Rebalance a rope if the depth has exceeded MAX_ROPE_DEPTH. If the
-	 * rope depth is less than MAX_ROPE_DEPTH or if the rope is of unknown
-	 * type, no rebalancing will occur.
+	 * Rebalance a rope if the depth has exceeded the maximum depth of its
+	 * <code>RopePolicy</code>. If the rope depth is less than the
+	 * maximum or if the rope is of unknown type, no rebalancing will occur. Ropes joined by <code>concatenate</code>
+	 * stay well below this depth; deeper ropes come from concatenation
+	 * ropes constructed directly.
+	 * <p>
+	 * If the policy asks for background rebalancing, the rope is instead
+	 * queued on the rebalance executor of the policy and returned as is.
+	 * The rebalanced forms of its deep nodes are published on the nodes
+	 * and picked up by later calls for any rope that shares them. A rope
+	 * is not queued while a rope it shares deep nodes with is queued.
 	 * @param r the rope to rebalance.
 	 * @return a rebalanced copy of the specified rope.
 	 */
 	public Rope autoRebalance(final Rope r) {
-		if (r instanceof AbstractRope && ((AbstractRope) r).depth() > RopeUtilities.MAX_ROPE_DEPTH) {
+		final RopePolicy policy = this.policy(r);
+		final int maxDepth = policy.getMaxDepth();
+		if (this.depth(r) <= maxDepth || !(r instanceof ConcatenationRope))
+			return r;
+		if (!policy.isBackgroundRebalance())
 			return this.rebalance(r);
-		} else {
+		final Rope published = this.published(r, policy);
+		if (this.depth(published) <= maxDepth || !(published instanceof ConcatenationRope)
+				|| this.isRebalancePending(published, maxDepth))
+			return published;
+		final ConcatenationRope c = (ConcatenationRope) published;
+		final Runnable task = new Runnable() {
+			public void run() {
+				try {
+					RopeUtilities.this.rebalanceDeep(c, maxDepth);
+				} finally {
+					RopeUtilities.this.setRebalancePending(c, maxDepth, false);
+				}
+			}
+		};
+		this.setRebalancePending(c, maxDepth, true);
+		try {
+			policy.getRebalanceExecutor().execute(task);
+		} catch (final RejectedExecutionException e) {
+			task.run();
+			return c.getRebalanced();
+		}
+		return published;
+	}
+
+	private boolean isRebalancePending(final Rope r, final int maxDepth) {
+		if (this.depth(r) <= maxDepth || !(r instanceof ConcatenationRope))
+			return false;
+		final ConcatenationRope c = (ConcatenationRope) r;
+		return c.isRebalancePending() || this.isRebalancePending(c.getLeft(), maxDepth) || this.isRebalancePending(c.getRight(), maxDepth);
+	}
+
+	private void setRebalancePending(final Rope r, final int maxDepth, final boolean pending) {
+		if (this.depth(r) <= maxDepth || !(r instanceof ConcatenationRope))
+			return;
+		final ConcatenationRope c = (ConcatenationRope) r;
+		c.setRebalancePending(pending);
+		this.setRebalancePending(c.getLeft(), maxDepth, pending);
+		this.setRebalancePending(c.getRight(), maxDepth, pending);
+	}
+
+	/*
+	 * Publishes the rebalanced form of every node of r deeper than
+	 * maxDepth, from the bottom up, so that ropes derived from r by
+	 * editing find the nodes they share with it rebalanced. Each node is
+	 * rebalanced from the rebalanced forms of its children, whose
+	 * balanced subtrees the rebalancer keeps intact.
+	 */
+	private Rope rebalanceDeep(final Rope r, final int maxDepth) {
+		if (this.depth(r) <= maxDepth || !(r instanceof ConcatenationRope))
 			return r;
+		final ConcatenationRope c = (ConcatenationRope) r;
+		Rope rebalanced = c.getRebalanced();
+		if (rebalanced == null) {
+			rebalanced = this.rebalance(new ConcatenationRope(this.rebalanceDeep(c.getLeft(), maxDepth), this.rebalanceDeep(c.getRight(), maxDepth)));
+			c.setRebalanced(rebalanced);
 		}
+		return rebalanced;
+	}
+
+	/*
+	 * Returns a rope with the contents of r in which every deep node
+	 * whose background rebalance has completed is replaced by its
+	 * rebalanced form. Only nodes deeper than the maximum depth of the
+	 * policy are visited.
+	 */
+	private Rope published(final Rope r, final RopePolicy policy) {
+		if (this.depth(r) <= policy.getMaxDepth() || !(r instanceof ConcatenationRope))
+			return r;
+		final ConcatenationRope c = (ConcatenationRope) r;
+		final Rope rebalanced = c.getRebalanced();
+		if (rebalanced != null)
+			return rebalanced;
+		final Rope left = this.published(c.getLeft(), policy), right = this.published(c.getRight(), policy);
+		if (left == c.getLeft() && right == c.getRight())
+			return r;
+		return this.join(left, right, policy);
 	}
 
 	/**
 	 * Concatenate two ropes. Implements all recommended optimizations in "Ropes: an
-	 * Alternative to Strings".
+	 * Alternative to Strings". Concatenation ropes are joined as AVL trees,
+	 * so the depth of the result stays logarithmic in its number of leaves
+	 * without a full rebalance. The concatenation follows the policy of
+	 * the first rope.
 	 * @param left the first rope.
 	 * @param right the second rope.
 	 * @return the concatenation of the specified ropes.
 	 */
 	Rope concatenate(final Rope left, final Rope right) {	
-		if (left.length() == 0)
+		// empty B-tree ropes are kept so that the result is a B-tree rope.
+		if (left.length() == 0 && !(left instanceof BTreeRope))
 			return right;
-		if (right.length() == 0)
+		if (right.length() == 0 && !(right instanceof BTreeRope))
 			return left;
 		if ((long) left.length() + right.length() > Integer.MAX_VALUE)
 			throw new IllegalArgumentException(
 				"Left length=" + left.length() + ", right length=" + right.length()
 				+ ". Concatenation would overflow length field.");
-		final int combineLength = 17;
+		if (left instanceof BTreeRope || right instanceof BTreeRope)
+			return BTreeRope.concatenate(left, right);
+		final RopePolicy policy = this.policy(left);
+		return this.autoRebalance(this.join(this.published(left, policy), this.published(right, policy), policy));
+	}
+
+	/*
+	 * Implementation Note: The children of every concatenation rope built
+	 * here differ in depth by at most one. When the inputs differ by more,
+	 * the shallower rope is joined into the spine of the deeper one and
+	 * each node on the way back up is restored with at most two rotations,
+	 * for O(log n) work per join. A short leaf is joined all the way down
+	 * to the adjacent leaf of the other rope, where the two are combined
+	 * into one flat rope if they are short enough.
+	 */
+	private Rope join(final Rope left, final Rope right, final RopePolicy policy) {
+		final int combineLength = policy.getCombineLength();
 		if (left.length() + right.length() < combineLength) {
-			return new FlatCharSequenceRope(left.toString() + right.toString());
+			final char[] combined = new char[left.length() + right.length()];
+			left.getChars(0, left.length(), combined, 0);
+			right.getChars(0, right.length(), combined, left.length());
+			return this.flat(combined, 0, combined.length, policy);
 		}
-		if (!(left instanceof ConcatenationRope)) {
-			if (right instanceof ConcatenationRope) {
-				final ConcatenationRope cRight  = (ConcatenationRope) right;
-				if (left.length() + cRight.getLeft().length() < combineLength)
-					return this.autoRebalance(new ConcatenationRope(new FlatCharSequenceRope(left.toString() + cRight.getLeft().toString()), cRight.getRight()));
-			}
+		final int leftDepth = this.depth(left), rightDepth = this.depth(right);
+		if (left instanceof ConcatenationRope && (leftDepth > rightDepth + 1 || this.isShortLeaf(right, combineLength))) {
+			final ConcatenationRope cLeft = (ConcatenationRope) left;
+			return this.balance(cLeft.getLeft(), this.join(cLeft.getRight(), right, policy));
 		}
-		if (!(right instanceof ConcatenationRope)) {
-			if (left instanceof ConcatenationRope) {
-				final ConcatenationRope cLeft = (ConcatenationRope) left;
-				if (right.length() + cLeft.getRight().length() < combineLength)
-					return this.autoRebalance(new ConcatenationRope(cLeft.getLeft(), new FlatCharSequenceRope(cLeft.getRight().toString() + right.toString())));
-			}
+		if (right instanceof ConcatenationRope && (rightDepth > leftDepth + 1 || this.isShortLeaf(left, combineLength))) {
+			final ConcatenationRope cRight = (ConcatenationRope) right;
+			return this.balance(this.join(left, cRight.getLeft(), policy), cRight.getRight());
 		}
-		
-		return this.autoRebalance(new ConcatenationRope(left, right));
+		return new ConcatenationRope(left, right);
+	}
+
+	private boolean isShortLeaf(final Rope r, final int combineLength) {
+		return !(r instanceof ConcatenationRope) && r.length() < combineLength;
+	}
+
+	private ConcatenationRope balance(final Rope left, final Rope right) {
+		final int leftDepth = this.depth(left), rightDepth = this.depth(right);
+		if (rightDepth > leftDepth + 1 && right instanceof ConcatenationRope) {
+			final ConcatenationRope cRight = (ConcatenationRope) right;
+			if (this.depth(cRight.getLeft()) > this.depth(cRight.getRight()))
+				return new ConcatenationRope(left, cRight.rotateRight()).rotateLeft();
+			return new ConcatenationRope(left, right).rotateLeft();
+		}
+		if (leftDepth > rightDepth + 1 && left instanceof ConcatenationRope) {
+			final ConcatenationRope cLeft = (ConcatenationRope) left;
+			if (this.depth(cLeft.getRight()) > this.depth(cLeft.getLeft()))
+				return new ConcatenationRope(cLeft.rotateLeft(), right).rotateRight();
+			return new ConcatenationRope(left, right).rotateRight();
+		}
+		return new ConcatenationRope(left, right);
 	}
 
 	/**
@@ -113,37 +254,631 @@ class RopeUtilities {
 			return false;
 		return (RopeUtilities.FIBONACCI[depth + 2] <= r.length());	// TODO: not necessarily valid w/e.g. padding char sequences.
 	}
+
+	/**
+	 * Rebalance a rope using the algorithm of Boehm, Atkinson and Plass
+	 * from "Ropes: an Alternative to Strings". The rope is walked from
+	 * left to right; subtrees that are already balanced are kept intact
+	 * and placed in a slot keyed by the Fibonacci range of their length,
+	 * and only the unbalanced nodes above them are rebuilt. Runs of short
+	 * leaves met on the way are coalesced into character arrays.
+	 * @param r the rope to rebalance.
+	 * @return a rebalanced copy of the specified rope.
+	 */
 	public Rope rebalance(final Rope r) {
-		// get all the nodes into a list
-		
-		final ArrayList<Rope> leafNodes = new ArrayList<Rope>();
-		final LinkedList<Rope> toExamine = new LinkedList<Rope>();
-		// begin a depth first loop.
-		toExamine.add(r);
-		while (toExamine.size() > 0) {
-			final Rope x = toExamine.removeFirst();
-			if (x instanceof ConcatenationRope) {
-				toExamine.addFirst(((ConcatenationRope) x).getRight());
-				toExamine.addFirst(((ConcatenationRope) x).getLeft());
-				continue;
+		return new Rebalancer(false, this.policy(r)).rebalance(r);
+	}
+
+	/**
+	 * Rebalance a rope, coalescing all of its short leaves into character
+	 * arrays of up to the leaf length of its <code>RopePolicy</code>. Unlike
+	 * <code>rebalance</code>, balanced subtrees are taken apart as well.
+	 * @param r the rope to compact.
+	 * @return a compacted copy of the specified rope.
+	 */
+	Rope compact(final Rope r) {
+		return new Rebalancer(true, this.policy(r)).rebalance(r);
+	}
+
+	/**
+	 * Returns a balanced concatenation of a range of ropes, in which each
+	 * node splits its range of ropes in half. The ropes are not copied or
+	 * combined.
+	 * @param ropes the ropes to concatenate.
+	 * @param start the start of the range, inclusive.
+	 * @param end the end of the range, exclusive.
+	 * @return the concatenation of the ropes.
+	 */
+	Rope concatenate(final Rope[] ropes, final int start, final int end) {
+		if (start == end)
+			return Rope.BUILDER.build("");
+		if (end - start == 1)
+			return ropes[start];
+		final int middle = (start + end) >>> 1;
+		return new ConcatenationRope(this.concatenate(ropes, start, middle), this.concatenate(ropes, middle, end));
+	}
+
+	/*
+	 * Implementation Note: Slot n holds a balanced rope with a length in
+	 * [F(n), F(n+1)). Lower slots hold the ropes to the right of higher
+	 * slots, so each slot is prepended to a rope as it moves up. Ropes
+	 * shorter than half of the leaf length, and concatenations no longer
+	 * than the leaf length, are copied into a pending buffer instead, which is
+	 * added as a single leaf when the next piece would overflow it.
+	 */
+	private final class Rebalancer {
+		private final boolean compact;
+		private final RopePolicy policy;
+		private final Rope[] slots = new Rope[RopeUtilities.FIBONACCI.length];
+		private final int leafLength;
+		private final char[] pending;
+		private int pendingLength;
+
+		Rebalancer(final boolean compact, final RopePolicy policy) {
+			this.compact = compact;
+			this.policy = policy;
+			this.leafLength = policy.getLeafLength();
+			this.pending = new char[this.leafLength];
+		}
+
+		Rope rebalance(final Rope r) {
+			if (r.length() == 0)
+				return r;
+			this.add(r);
+			this.flush();
+			Rope result = null;
+			for (final Rope slot: this.slots)
+				if (slot != null)
+					result = (result == null ? slot: new ConcatenationRope(slot, result));
+			return result;
+		}
+
+		private void add(final Rope r) {
+			final int length = r.length();
+			if (length == 0)
+				return;
+			final boolean concatenation = r instanceof ConcatenationRope;
+			if (length < this.leafLength / 2 || (concatenation && length <= this.leafLength)) {
+				if (this.pendingLength + length > this.leafLength)
+					this.flush();
+				r.getChars(0, length, this.pending, this.pendingLength);
+				this.pendingLength += length;
+			} else if (concatenation && (this.compact || !RopeUtilities.this.isBalanced(r))) {
+				final ConcatenationRope c = (ConcatenationRope) r;
+				this.add(c.getLeft());
+				this.add(c.getRight());
 			} else {
-				leafNodes.add(x);
+				this.flush();
+				this.insert(r);
 			}
 		}
-		Rope result = merge(leafNodes, 0, leafNodes.size());
-		return result;
+
+		private void flush() {
+			if (this.pendingLength == 0)
+				return;
+			this.insert(RopeUtilities.this.flat(this.pending, 0, this.pendingLength, this.policy));
+			this.pendingLength = 0;
+		}
+
+		private void insert(final Rope r) {
+			Rope x = r;
+			for (int n=2; ; ++n) {
+				if (this.slots[n] != null) {
+					x = new ConcatenationRope(this.slots[n], x);
+					this.slots[n] = null;
+				}
+				if (x.length() < RopeUtilities.FIBONACCI[n + 1]) {
+					this.slots[n] = x;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the highest concatenation boundary of a rope that falls
+	 * strictly within the specified range, or the midpoint of the range
+	 * if it lies within a single leaf. Splitting work at these points
+	 * follows the shape of the rope, so balanced ropes split evenly.
+	 * @param r the rope.
+	 * @param lo the start of the range, inclusive.
+	 * @param hi the end of the range, exclusive.
+	 * @return the split point.
+	 */
+	int splitPoint(final Rope r, final int lo, final int hi) {
+		Rope node = r;
+		int start = 0;
+		while (node instanceof ConcatenationRope || node instanceof BTreeRope) {
+			if (node instanceof BTreeRope) {
+				// split at the child boundary nearest the middle of the range.
+				final BTreeRope b = (BTreeRope) node;
+				final int first = b.childIndex(lo - start), last = b.childIndex(hi - 1 - start);
+				if (first == last) {
+					node = b.getChild(first);
+					start += b.getChildOffset(first);
+					continue;
+				}
+				final int middle = b.childIndex(lo - start + (hi - lo) / 2);
+				return start + b.getChildOffset(Math.max(middle, first + 1));
+			}
+			final ConcatenationRope c = (ConcatenationRope) node;
+			final int split = start + c.getLeft().length();
+			if (lo < split && split < hi)
+				return split;
+			if (hi <= split) {
+				node = c.getLeft();
+			} else {
+				node = c.getRight();
+				start = split;
+			}
+		}
+		return lo + (hi - lo) / 2;
+	}
+
+	/**
+	 * Returns the hash code of the specified range of a rope, computed as
+	 * by <code>String.hashCode</code>. The hash code of a whole rope is
+	 * taken from its cache.
+	 * @param r the rope.
+	 * @param start the start of the range, inclusive.
+	 * @param end the end of the range, exclusive.
+	 * @return the hash code of the range.
+	 */
+	int hash(final Rope r, final int start, final int end) {
+		if (start == 0 && end == r.length())
+			return r.hashCode();
+		if (r instanceof AbstractRope)
+			return ((AbstractRope) r).hash(start, end);
+		int hash = 0;
+		for (int j=start; j<end; ++j)
+			hash = 31 * hash + r.charAt(j);
+		return hash;
+	}
+
+	/**
+	 * Returns a flat rope holding a copy of a range of a character array.
+	 * If every character in the range is a Latin-1 character, the rope
+	 * stores one byte per character.
+	 * @param sequence the character array.
+	 * @param offset the offset of the range.
+	 * @param length the length of the range.
+	 * @param policy the policy of the rope.
+	 * @return a flat rope holding the range.
+	 */
+	Rope flat(final char[] sequence, final int offset, final int length, final RopePolicy policy) {
+		if (FlatByteArrayRope.isLatin1(sequence, offset, length))
+			return new FlatByteArrayRope(sequence, offset, length, policy);
+		return new FlatCharArrayRope(sequence, offset, length, policy);
+	}
+
+	/**
+	 * Returns a rope over a character sequence with the specified policy,
+	 * or the sequence itself if it is a rope.
+	 * @param sequence the character sequence.
+	 * @param policy the policy of the rope.
+	 * @return a rope representing the sequence.
+	 */
+	Rope build(final CharSequence sequence, final RopePolicy policy) {
+		if (sequence instanceof Rope)
+			return (Rope) sequence;
+		return new FlatCharSequenceRope(sequence, policy);
+	}
+
+	/**
+	 * Returns the policy of a rope, or the default policy if the rope is
+	 * of unknown type.
+	 * @param r the rope.
+	 * @return the policy of the rope.
+	 */
+	RopePolicy policy(final Rope r) {
+		if (r instanceof AbstractRope)
+			return ((AbstractRope) r).getPolicy();
+		return RopePolicy.DEFAULT;
+	}
+
+	/**
+	 * Returns the number of newline characters in a rope.
+	 * @param r the rope.
+	 * @return the number of newlines.
+	 */
+	int newlineCount(final Rope r) {
+		if (r instanceof AbstractRope)
+			return ((AbstractRope) r).newlineCount();
+		return this.newlinesBefore(r, r.length());
+	}
+
+	/**
+	 * Returns the offset of the specified newline character of a rope.
+	 * @param r the rope.
+	 * @param n the index of the newline, counted from zero.
+	 * @return the offset of the newline.
+	 */
+	int newlineOffset(final Rope r, final int n) {
+		if (r instanceof AbstractRope)
+			return ((AbstractRope) r).newlineOffset(n);
+		for (int j=0, count=0; j<r.length(); ++j)
+			if (r.charAt(j) == '\n' && count++ == n)
+				return j;
+		throw new IndexOutOfBoundsException("Line out of range: " + (n + 1));
+	}
+
+	/**
+	 * Returns the number of newline characters of a rope before the
+	 * specified offset.
+	 * @param r the rope.
+	 * @param offset the offset.
+	 * @return the number of newlines before the offset.
+	 */
+	int newlinesBefore(final Rope r, final int offset) {
+		if (r instanceof AbstractRope)
+			return ((AbstractRope) r).newlinesBefore(offset);
+		int count = 0;
+		for (int j=0; j<offset; ++j)
+			if (r.charAt(j) == '\n')
+				++count;
+		return count;
+	}
+
+	/**
+	 * Returns the largest offset of a rope such that at most the specified
+	 * number of code points lie before it, counting a surrogate pair as
+	 * one code point only once both its characters lie before the offset.
+	 * @param r the rope.
+	 * @param codePoints the number of code points.
+	 * @return the offset.
+	 */
+	int codePointOffset(final Rope r, final int codePoints) {
+		if (r instanceof AbstractRope)
+			return ((AbstractRope) r).codePointOffset(codePoints);
+		int lo = 0, hi = r.length();
+		while (lo < hi) {
+			final int mid = (lo + hi + 1) >>> 1;
+			if (mid - this.surrogatePairsBefore(r, mid) <= codePoints)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns whether a surrogate pair is split between two adjacent
+	 * ropes, that is, whether the first ends with a high surrogate and
+	 * the second starts with a low surrogate.
+	 * @param left the first rope.
+	 * @param right the second rope.
+	 * @return <code>true</code> if a surrogate pair spans the ropes.
+	 */
+	boolean isSurrogatePair(final Rope left, final Rope right) {
+		return left.length() > 0 && right.length() > 0
+			&& Character.isHighSurrogate(left.charAt(left.length() - 1))
+			&& Character.isLowSurrogate(right.charAt(0));
+	}
+
+	/**
+	 * Returns the number of surrogate pairs in a rope.
+	 * @param r the rope.
+	 * @return the number of surrogate pairs.
+	 */
+	int surrogatePairCount(final Rope r) {
+		if (r instanceof AbstractRope)
+			return ((AbstractRope) r).surrogatePairCount();
+		return this.surrogatePairsBefore(r, r.length());
+	}
+
+	/**
+	 * Returns the number of surrogate pairs of a rope that lie entirely
+	 * before the specified offset.
+	 * @param r the rope.
+	 * @param offset the offset.
+	 * @return the number of surrogate pairs before the offset.
+	 */
+	int surrogatePairsBefore(final Rope r, final int offset) {
+		if (r instanceof AbstractRope)
+			return ((AbstractRope) r).surrogatePairsBefore(offset);
+		int count = 0;
+		for (int j=0; j+1<offset; ++j)
+			if (Character.isHighSurrogate(r.charAt(j)) && Character.isLowSurrogate(r.charAt(j + 1)))
+				++count;
+		return count;
+	}
+
+	/**
+	 * Writes a rope to an output stream, encoded in the specified charset.
+	 * Leaves that are stored encoded in the charset are copied to the
+	 * stream directly; the others are encoded by an encoder shared by
+	 * consecutive leaves, so that a surrogate pair split between leaves is
+	 * encoded as one code point. Unpaired surrogates are replaced by the
+	 * replacement bytes of the charset.
+	 * @param r the rope.
+	 * @param out the output stream.
+	 * @param charset the charset.
+	 */
+	void write(final Rope r, final OutputStream out, final Charset charset) throws IOException {
+		final EncodingWriter writer = new EncodingWriter(out, charset);
+		this.write(r, out, charset, writer);
+		writer.finish();
+	}
+
+	private void write(final Rope r, final OutputStream out, final Charset charset, final EncodingWriter writer) throws IOException {
+		if (r instanceof ConcatenationRope) {
+			this.write(((ConcatenationRope) r).getLeft(), out, charset, writer);
+			this.write(((ConcatenationRope) r).getRight(), out, charset, writer);
+			return;
+		}
+		if (r instanceof BTreeRope) {
+			final BTreeRope b = (BTreeRope) r;
+			for (int j=0; j<b.getChildCount(); ++j)
+				this.write(b.getChild(j), out, charset, writer);
+			return;
+		}
+		// an empty leaf must not end the input, which would split a pair around it.
+		if (r.length() == 0)
+			return;
+		final ByteBuffer encoded = (r instanceof AbstractRope ? ((AbstractRope) r).encoded(charset): null);
+		if (encoded == null) {
+			r.write(writer);
+			return;
+		}
+		writer.finish();
+		if (encoded.hasArray()) {
+			out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+			return;
+		}
+		final byte[] buffer = new byte[Math.min(encoded.remaining(), 8192)];
+		while (encoded.hasRemaining()) {
+			final int n = Math.min(encoded.remaining(), buffer.length);
+			encoded.get(buffer, 0, n);
+			out.write(buffer, 0, n);
+		}
+	}
+
+	/**
+	 * Encodes the characters written to it into an output stream. Unlike
+	 * an <code>OutputStreamWriter</code>, the input can be ended at any
+	 * point with <code>finish</code>, which encodes a pending high
+	 * surrogate as an unpaired one before bytes are written to the stream
+	 * directly.
+	 */
+	private static final class EncodingWriter extends Writer {
+
+		private final OutputStream out;
+		private final CharsetEncoder encoder;
+		private final CharBuffer chars = CharBuffer.allocate(8192);
+		private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+
+		EncodingWriter(final OutputStream out, final Charset charset) {
+			this.out = out;
+			this.encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+
+		@Override
+		public void write(final char[] cbuf, final int off, final int len) throws IOException {
+			for (int j=off; j<off + len; ) {
+				final int n = Math.min(off + len - j, this.chars.remaining());
+				this.chars.put(cbuf, j, n);
+				j += n;
+				this.chars.flip();
+				this.encode(false);
+				// a trailing high surrogate is kept for the next write.
+				this.chars.compact();
+			}
+		}
+
+		/**
+		 * Ends the input, encoding and writing out any pending characters.
+		 * The writer can be used again afterwards.
+		 * @throws IOException if the output stream cannot be written.
+		 */
+		void finish() throws IOException {
+			this.chars.flip();
+			this.encode(true);
+			this.chars.clear();
+			while (this.encoder.flush(this.bytes).isOverflow())
+				this.drain();
+			this.drain();
+			this.encoder.reset();
+		}
+
+		private void encode(final boolean endOfInput) throws IOException {
+			CoderResult result;
+			while ((result = this.encoder.encode(this.chars, this.bytes, endOfInput)).isOverflow())
+				this.drain();
+			if (result.isError())
+				result.throwException();
+		}
+
+		private void drain() throws IOException {
+			this.out.write(this.bytes.array(), 0, this.bytes.position());
+			this.bytes.clear();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.finish();
+			this.out.close();
+		}
+	}
+
+	/**
+	 * Returns the offset of the first mismatch between two ranges of
+	 * equal length. The ropes are walked in lockstep along their leaves;
+	 * subtrees that are shared by both ropes at the same offset are
+	 * skipped without being read, and leaves backed by character arrays
+	 * are compared in bulk.
+	 * @param x the first rope.
+	 * @param xOffset the start of the range in the first rope.
+	 * @param y the second rope.
+	 * @param yOffset the start of the range in the second rope.
+	 * @param length the length of the ranges.
+	 * @return the offset of the first mismatch relative to the start of
+	 * the ranges, or -1 if the ranges are equal.
+	 */
+	int mismatch(final Rope x, final int xOffset, final Rope y, final int yOffset, final int length) {
+		return this.mismatch(x, xOffset, y, yOffset, length, false);
+	}
+
+	/**
+	 * Returns the offset of the last mismatch between two ranges of equal
+	 * length, comparing from the end of the ranges towards their start.
+	 * @param x the first rope.
+	 * @param xOffset the start of the range in the first rope.
+	 * @param y the second rope.
+	 * @param yOffset the start of the range in the second rope.
+	 * @param length the length of the ranges.
+	 * @return the offset of the last mismatch relative to the start of
+	 * the ranges, or -1 if the ranges are equal.
+	 * @see #mismatch(Rope, int, Rope, int, int)
+	 */
+	int lastMismatch(final Rope x, final int xOffset, final Rope y, final int yOffset, final int length) {
+		return this.mismatch(x, xOffset, y, yOffset, length, true);
 	}
-	private Rope merge(ArrayList<Rope> leafNodes, int start, int end) {
-		int range = end - start;
-		switch (range) {
-		case 1:
-			return leafNodes.get(start);
-		case 2:
-			return new ConcatenationRope(leafNodes.get(start), leafNodes.get(start + 1));
-		default:
-			int middle = start + (range / 2);
-			return new ConcatenationRope(merge(leafNodes, start, middle), merge(leafNodes, middle, end));
+
+	private int mismatch(Rope x, int xOffset, Rope y, int yOffset, final int length, final boolean last) {
+		if (length == 0)
+			return -1;
+
+		// step 1. narrow each range to the smallest node containing it.
+		while (true) {
+			if (x instanceof ConcatenationRope) {
+				final ConcatenationRope c = (ConcatenationRope) x;
+				final int split = c.getLeft().length();
+				if (xOffset + length <= split) {
+					x = c.getLeft();
+					continue;
+				}
+				if (xOffset >= split) {
+					x = c.getRight();
+					xOffset -= split;
+					continue;
+				}
+			} else if (x instanceof BTreeRope) {
+				final BTreeRope b = (BTreeRope) x;
+				final int j = b.childIndex(xOffset);
+				if (xOffset + length <= b.getChildOffset(j + 1)) {
+					x = b.getChild(j);
+					xOffset -= b.getChildOffset(j);
+					continue;
+				}
+			} else if (x instanceof SubstringRope) {
+				xOffset += ((SubstringRope) x).getOffset();
+				x = ((SubstringRope) x).getRope();
+				continue;
+			}
+			if (y instanceof ConcatenationRope) {
+				final ConcatenationRope c = (ConcatenationRope) y;
+				final int split = c.getLeft().length();
+				if (yOffset + length <= split) {
+					y = c.getLeft();
+					continue;
+				}
+				if (yOffset >= split) {
+					y = c.getRight();
+					yOffset -= split;
+					continue;
+				}
+			} else if (y instanceof BTreeRope) {
+				final BTreeRope b = (BTreeRope) y;
+				final int j = b.childIndex(yOffset);
+				if (yOffset + length <= b.getChildOffset(j + 1)) {
+					y = b.getChild(j);
+					yOffset -= b.getChildOffset(j);
+					continue;
+				}
+			} else if (y instanceof SubstringRope) {
+				yOffset += ((SubstringRope) y).getOffset();
+				y = ((SubstringRope) y).getRope();
+				continue;
+			}
+			break;
 		}
+		if (x == y && xOffset == yOffset)
+			return -1;
+
+		// step 2. split ranges that span two children.
+		if (x instanceof ConcatenationRope || y instanceof ConcatenationRope
+				|| x instanceof BTreeRope || y instanceof BTreeRope) {
+			final int split;
+			if (x instanceof ConcatenationRope)
+				split = ((ConcatenationRope) x).getLeft().length() - xOffset;
+			else if (x instanceof BTreeRope)
+				split = ((BTreeRope) x).getChildOffset(((BTreeRope) x).childIndex(xOffset) + 1) - xOffset;
+			else if (y instanceof ConcatenationRope)
+				split = ((ConcatenationRope) y).getLeft().length() - yOffset;
+			else
+				split = ((BTreeRope) y).getChildOffset(((BTreeRope) y).childIndex(yOffset) + 1) - yOffset;
+			if (last) {
+				final int rest = this.mismatch(x, xOffset + split, y, yOffset + split, length - split, true);
+				if (rest >= 0)
+					return split + rest;
+				return this.mismatch(x, xOffset, y, yOffset, split, true);
+			}
+			final int result = this.mismatch(x, xOffset, y, yOffset, split, false);
+			if (result >= 0)
+				return result;
+			final int rest = this.mismatch(x, xOffset + split, y, yOffset + split, length - split, false);
+			return rest < 0 ? -1: split + rest;
+		}
+
+		// step 3. compare two leaves.
+		if (x instanceof FlatCharArrayRope && y instanceof FlatCharArrayRope) {
+			final char[] a = ((FlatCharArrayRope) x).getSequence();
+			final char[] b = ((FlatCharArrayRope) y).getSequence();
+			if (a == b && xOffset == yOffset)
+				return -1;
+			if (!last)
+				return Arrays.mismatch(a, xOffset, xOffset + length, b, yOffset, yOffset + length);
+			for (int j=length-1; j>=0; --j)
+				if (a[xOffset + j] != b[yOffset + j])
+					return j;
+			return -1;
+		}
+		if (x instanceof FlatByteArrayRope && y instanceof FlatByteArrayRope) {
+			final byte[] a = ((FlatByteArrayRope) x).getSequence();
+			final byte[] b = ((FlatByteArrayRope) y).getSequence();
+			if (a == b && xOffset == yOffset)
+				return -1;
+			if (!last)
+				return Arrays.mismatch(a, xOffset, xOffset + length, b, yOffset, yOffset + length);
+			for (int j=length-1; j>=0; --j)
+				if (a[xOffset + j] != b[yOffset + j])
+					return j;
+			return -1;
+		}
+		if (last) {
+			final RopeCursor i = x.cursor(xOffset + length), k = y.cursor(yOffset + length);
+			for (int j=length-1; j>=0; --j)
+				if (i.prevChar() != k.prevChar())
+					return j;
+			return -1;
+		}
+		final RopeCursor i = x.cursor(xOffset), k = y.cursor(yOffset);
+		for (int j=0; j<length; ++j)
+			if (i.nextChar() != k.nextChar())
+				return j;
+		return -1;
+	}
+
+	/**
+	 * Returns 31 raised to the specified power, the factor by which
+	 * appending the specified number of characters multiplies the hash
+	 * code of a rope.
+	 * @param n a non-negative exponent.
+	 * @return 31<sup>n</sup>, modulo 2<sup>32</sup>.
+	 */
+	int power31(int n) {
+		int result = 1;
+		for (int base = 31; n > 0; n >>>= 1, base *= base)
+			if ((n & 1) != 0)
+				result *= base;
+		return result;
 	}
 
 	/**
@@ -26,7 +26,10 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.Iterator;
 
+import org.ahmadsoft.ropes.ChunkConsumer;
 import org.ahmadsoft.ropes.Rope;
+import org.ahmadsoft.ropes.RopeCursor;
+import org.ahmadsoft.ropes.RopePolicy;
 
 /**
  * Represents a lazily-evaluated substring of another rope. For performance
@@ -55,15 +58,76 @@ public class SubstringRope extends AbstractRope {
 		return this.rope.charAt(this.offset + index);
 	}
 
+	/*
+	 * Implementation Note: The cursor is backed by a cursor over the
+	 * underlying rope, so that the underlying rope is traversed rather
+	 * than indexed.
+	 */
+	public RopeCursor cursor(final int start) {
+		if (start < 0 || start > this.length())
+			throw new IndexOutOfBoundsException("Rope index out of range: " + start);
+		return new RopeCursor() {
+			final RopeCursor u = SubstringRope.this.rope.cursor(SubstringRope.this.offset + start);
+			public boolean hasNext() {
+				return this.position() < SubstringRope.this.length;
+			}
+
+			public boolean hasPrevious() {
+				return this.position() > 0;
+			}
+
+			public char nextChar() {
+				if (!this.hasNext())
+					throw new IndexOutOfBoundsException("Rope index out of range: " + this.position());
+				return this.u.nextChar();
+			}
+
+			public char prevChar() {
+				if (!this.hasPrevious())
+					throw new IndexOutOfBoundsException("Rope index out of range: -1");
+				return this.u.prevChar();
+			}
+
+			public int position() {
+				return this.u.position() - SubstringRope.this.offset;
+			}
+
+			public void seek(final int position) {
+				if (position < 0 || position > SubstringRope.this.length)
+					throw new IndexOutOfBoundsException("Rope index out of range: " + position);
+				this.u.seek(SubstringRope.this.offset + position);
+			}
+		};
+	}
+
 	@Override
 	public byte depth() {
 		return RopeUtilities.INSTANCE.depth(getRope());
 	}
 
+	public boolean forEachChunk(final int start, final int end, final ChunkConsumer consumer) {
+		this.checkRange(start, end);
+		return this.rope.forEachChunk(this.offset + start, this.offset + end, consumer);
+	}
+
+	@Override
+	int hash(final int start, final int end) {
+		return RopeUtilities.INSTANCE.hash(this.rope, this.offset + start, this.offset + end);
+	}
+
+	public void getChars(final int srcBegin, final int srcEnd, final char[] dst, final int dstBegin) {
+		this.checkGetChars(srcBegin, srcEnd, dst, dstBegin);
+		this.rope.getChars(this.offset + srcBegin, this.offset + srcEnd, dst, dstBegin);
+	}
+
 	int getOffset() {
 		return this.offset;
 	}
 
+	public RopePolicy getPolicy() {
+		return RopeUtilities.INSTANCE.policy(this.rope);
+	}
+
 	/**
 	 * Returns the rope underlying this one.
 	 * @return the rope underlying this one.
@@ -100,6 +164,44 @@ public class SubstringRope extends AbstractRope {
 		return this.length;
 	}
 
+	/*
+	 * Implementation Note: A surrogate pair of the underlying rope that
+	 * straddles the start of this substring is not a pair of this rope.
+	 */
+	@Override
+	int surrogatePairCount() {
+		return this.surrogatePairsBefore(this.length);
+	}
+
+	@Override
+	int surrogatePairsBefore(final int offset) {
+		if (offset <= 0)
+			return 0;
+		final int straddling = (this.offset > 0
+			&& Character.isHighSurrogate(this.rope.charAt(this.offset - 1))
+			&& Character.isLowSurrogate(this.rope.charAt(this.offset)) ? 1: 0);
+		return RopeUtilities.INSTANCE.surrogatePairsBefore(this.rope, this.offset + offset)
+			- RopeUtilities.INSTANCE.surrogatePairsBefore(this.rope, this.offset) - straddling;
+	}
+
+	@Override
+	int newlineCount() {
+		return RopeUtilities.INSTANCE.newlinesBefore(this.rope, this.offset + this.length)
+			- RopeUtilities.INSTANCE.newlinesBefore(this.rope, this.offset);
+	}
+
+	@Override
+	int newlineOffset(final int n) {
+		final int before = RopeUtilities.INSTANCE.newlinesBefore(this.rope, this.offset);
+		return RopeUtilities.INSTANCE.newlineOffset(this.rope, before + n) - this.offset;
+	}
+
+	@Override
+	int newlinesBefore(final int offset) {
+		return RopeUtilities.INSTANCE.newlinesBefore(this.rope, this.offset + offset)
+			- RopeUtilities.INSTANCE.newlinesBefore(this.rope, this.offset);
+	}
+
 	public Rope reverse() {
 		return new ReverseRope(this);
 	}
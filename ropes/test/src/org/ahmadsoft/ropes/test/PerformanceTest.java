@@ -356,6 +356,38 @@ public class PerformanceTest {
             }
         }
 
+        if (isTestMutation() && isTestRope()) {
+            System.out.printf("%n**** B-TREE ROPE TEST ****%n");
+            System.out.printf("* Compares ropes built from binary concatenation nodes with%n" +
+                              "* ropes built from wide B-tree nodes: the insert plan, followed%n" +
+                              "* by random charAt and subSequence calls on the results.%n%n");
+
+            final int[][] insertPlan = insertTestPlan(aChristmasCarol.length());
+            final int[] accessPlan = new int[1000000];
+            for (int j=0; j<accessPlan.length; ++j)
+                accessPlan[j] = random.nextInt(aChristmasCarol.length());
+            final Rope concatenated = ropeInsertPlan(Rope.BUILDER.build(aChristmasCarol_RAW), insertPlan);
+            final Rope btree = ropeInsertPlan(Rope.BUILDER.buildBTree(aChristmasCarol), insertPlan);
+            System.out.printf("Rope depth: %d, B-tree rope depth: %d%n",
+                ((AbstractRope) concatenated).depth(), ((AbstractRope) btree).depth());
+
+            long[] stats0 = new long[ITERATION_COUNT], stats1 = new long[ITERATION_COUNT], stats2 = new long[ITERATION_COUNT], stats3 = new long[ITERATION_COUNT], stats4 = new long[ITERATION_COUNT], stats5 = new long[ITERATION_COUNT];
+            for (int j=0;j<ITERATION_COUNT;++j){
+                stats0[j] = ropeInsertTest3(Rope.BUILDER.build(aChristmasCarol_RAW), insertPlan, "[Rope]");
+                stats1[j] = ropeInsertTest3(Rope.BUILDER.buildBTree(aChristmasCarol), insertPlan, "[BTree]");
+                stats2[j] = ropeRandomAccessTest(concatenated, accessPlan, "[Rope]");
+                stats3[j] = ropeRandomAccessTest(btree, accessPlan, "[BTree]");
+                stats4[j] = ropeSubSequenceTest(concatenated, accessPlan, "[Rope]");
+                stats5[j] = ropeSubSequenceTest(btree, accessPlan, "[BTree]");
+            }
+            printStats(System.out, stats0, "ns", "[Rope/insert]");
+            printStats(System.out, stats1, "ns", "[BTree/insert]");
+            printStats(System.out, stats2, "ns", "[Rope/charAt]");
+            printStats(System.out, stats3, "ns", "[BTree/charAt]");
+            printStats(System.out, stats4, "ns", "[Rope/subSeq]");
+            printStats(System.out, stats5, "ns", "[BTree/subSeq]");
+        }
+
         if (isTestTraveral()) {
             System.out.printf("%n**** TRAVERSAL TEST 1 (SIMPLY-CONSTRUCTED DATASTRUCTURES) ****%n");
             System.out.printf("* A traversal test wherein the datastructures are simply%n" +
@@ -848,6 +880,52 @@ public class PerformanceTest {
         return (y-x);
     }
 
+    Rope ropeInsertPlan(final Rope rope, final int[][] insertPlan) {
+        Rope result=rope;
+        for (int j=0; j<insertPlan.length; ++j) {
+            final int into   = insertPlan[j][0];
+            final int offset = insertPlan[j][1];
+            final int length = insertPlan[j][2];
+            result = result.insert(into, result.subSequence(offset, offset+length));
+        }
+        return result;
+    }
+
+    long ropeInsertTest3(final Rope rope, final int[][] insertPlan, final String label) {
+        long x,y;
+
+        x = System.nanoTime();
+        Rope result = ropeInsertPlan(rope, insertPlan);
+        y = System.nanoTime();
+        verbose("%-14s Executed insert plan in % ,18d ns. Result has length: %d. Rope Depth: %d\n", label, (y-x), result.length(), ((AbstractRope)result).depth());
+        return (y-x);
+    }
+
+    long ropeRandomAccessTest(final Rope rope, final int[] accessPlan, final String label) {
+        long x,y,result=0;
+
+        x = System.nanoTime();
+        for (final int index: accessPlan) result+=rope.charAt(index);
+        y = System.nanoTime();
+        verbose("%-14s Executed random charAt in % ,18d ns. Result checksum: %d\n", label, (y-x), result);
+        return (y-x);
+    }
+
+    long ropeSubSequenceTest(final Rope rope, final int[] accessPlan, final String label) {
+        long x,y,result=0;
+
+        x = System.nanoTime();
+        for (int j=0; j+1<accessPlan.length; j+=20) {
+            final int start = Math.min(accessPlan[j], accessPlan[j+1]);
+            final int end   = Math.max(accessPlan[j], accessPlan[j+1]);
+            if (start < end)
+                result+=rope.subSequence(start, end).charAt((end - start) >> 1);
+        }
+        y = System.nanoTime();
+        verbose("%-14s Executed subSequence in % ,18d ns. Result checksum: %d\n", label, (y-x), result);
+        return (y-x);
+    }
+
     long textInsertTest(final String text, final int[][] insertPlan, int planLength) {
         long x,y;
         Text result=new Text(text);
@@ -27,20 +27,44 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
+import org.ahmadsoft.ropes.ChunkConsumer;
 import org.ahmadsoft.ropes.Rope;
 import org.ahmadsoft.ropes.RopeBuilder;
+import org.ahmadsoft.ropes.RopeCursor;
+import org.ahmadsoft.ropes.RopePattern;
+import org.ahmadsoft.ropes.RopePolicy;
+import org.ahmadsoft.ropes.RopeSearcher;
+import org.ahmadsoft.ropes.impl.AbstractRope;
+import org.ahmadsoft.ropes.impl.BTreeRope;
 import org.ahmadsoft.ropes.impl.ConcatenationRope;
+import org.ahmadsoft.ropes.impl.ConcatenationRopeIteratorImpl;
+import org.ahmadsoft.ropes.impl.ConcatenationRopeReverseIteratorImpl;
+import org.ahmadsoft.ropes.impl.FlatByteArrayRope;
 import org.ahmadsoft.ropes.impl.FlatCharArrayRope;
 import org.ahmadsoft.ropes.impl.FlatCharSequenceRope;
+import org.ahmadsoft.ropes.impl.FlatUtf8Rope;
 import org.ahmadsoft.ropes.impl.ReverseRope;
+import org.ahmadsoft.ropes.impl.RopeFinger;
 import org.ahmadsoft.ropes.impl.SubstringRope;
 
 public class RopeTest extends TestCase {
@@ -192,6 +216,32 @@ public class RopeTest extends TestCase {
 		
 	}
 	
+	public void testIteratorMoveBackwards() {
+		Rope r = Rope.BUILDER.build("");
+		for (int j=0; j<10; ++j)
+			r = new ConcatenationRope(r, new FlatCharSequenceRope("0123456789"));
+		ConcatenationRopeIteratorImpl i = new ConcatenationRopeIteratorImpl(r, 0);
+		for (int j=0; j<55; ++j)
+			i.next();
+		assertEquals(54, i.getPos());
+		assertTrue(i.canMoveBackwards(55));
+		assertFalse(i.canMoveBackwards(56));
+		i.moveBackwards(32);
+		assertEquals('3', (char) i.next());
+		i.skip(40);
+		assertEquals('4', (char) i.next());
+		assertEquals(64, i.getPos());
+
+		ConcatenationRopeReverseIteratorImpl x = new ConcatenationRopeReverseIteratorImpl(r, 0);
+		for (int j=0; j<55; ++j)
+			x.next();
+		assertEquals(45, x.getPos());
+		assertTrue(x.canMoveBackwards(55));
+		assertFalse(x.canMoveBackwards(56));
+		x.moveBackwards(32);
+		assertEquals('6', (char) x.next());
+	}
+
 	public void testReverse() {
 		Rope x1 = new FlatCharSequenceRope("012345");
 		Rope x2 = new FlatCharSequenceRope("67");
@@ -270,6 +320,34 @@ public class RopeTest extends TestCase {
 		assertTrue(r1.equals(r2));
 	}
 
+	public void testHashCode3() {
+		// the hash covers every character, like String.hashCode.
+		final String s1 = "{\"id\": 1, \"name\": \"first\"}";
+		final String s2 = "{\"id\": 1, \"name\": \"other\"}";
+		assertEquals(s1.hashCode(), Rope.BUILDER.build(s1).hashCode());
+		assertEquals(s1.hashCode(), Rope.BUILDER.build(s1.toCharArray()).hashCode());
+		assertFalse(Rope.BUILDER.build(s1).hashCode() == Rope.BUILDER.build(s2).hashCode());
+
+		// hashes compose across concatenations, substrings and reversals.
+		Rope r = Rope.BUILDER.build("");
+		final StringBuilder b = new StringBuilder();
+		for (int j=0; j<200; ++j) {
+			final String piece = "line " + j + (j % 3 == 0 ? "\u65e5\u672c": "") + "\n";
+			b.append(piece);
+			r = r.append(j % 2 == 0 ? Rope.BUILDER.build(piece): Rope.BUILDER.build(piece.toCharArray()));
+			assertEquals(b.toString().hashCode(), r.hashCode());
+		}
+		final String text = b.toString();
+		for (int j=0; j<text.length(); j += 97) {
+			final int end = Math.min(text.length(), j + 3 * j / 2 + 1);
+			assertEquals(text.substring(j, end).hashCode(), r.subSequence(j, end).hashCode());
+			assertEquals(text.substring(j, end).hashCode(), r.rebalance().subSequence(j, end).hashCode());
+		}
+		assertEquals(new StringBuilder(text).reverse().toString().hashCode(), r.reverse().hashCode());
+		assertTrue(r.equals(Rope.BUILDER.build(text)));
+		assertFalse(r.equals(Rope.BUILDER.build(text.substring(0, text.length() - 1) + "x")));
+	}
+
 	public void testIndexOf() {
 		final Rope r1 = Rope.BUILDER.build("alpha");
 		final Rope r2 = Rope.BUILDER.build("beta");
@@ -305,6 +383,549 @@ public class RopeTest extends TestCase {
 		assertEquals(-1, r.indexOf("ab",1));
 	}
 
+	public void testParallelIndexOf() {
+		char[] block = new char[1 << 12];
+		Arrays.fill(block, 'a');
+		Rope r = Rope.BUILDER.build("");
+		for (int j=0; j<1024; ++j)
+			r = r.append(Rope.BUILDER.build(block));
+		assertTrue(r.length() >= 1 << 22);
+
+		assertEquals(-1, r.indexOf("ab"));
+		// an occurrence spanning the seam between two leaves.
+		Rope r2 = r.subSequence(0, 700 << 12).append("xy").append(r.subSequence(700 << 12, r.length()));
+		assertEquals(700 << 12, r2.indexOf("xya"));
+		assertEquals((700 << 12) - 2, r2.indexOf("aaxy"));
+		assertEquals(-1, r2.indexOf("aaxy", (700 << 12) - 1));
+		// the leftmost of several occurrences wins.
+		Rope r3 = r2.subSequence(0, 5).append("xy").append(r2.subSequence(5, r2.length()));
+		assertEquals(5, r3.indexOf("xya"));
+		assertEquals((700 << 12) + 2, r3.indexOf("xya", 6));
+	}
+
+	public void testIndexOfPattern() {
+		// characters that agree in their low byte must not share a shift.
+		final Rope r1 = Rope.BUILDER.build("\u4e00\u4e8c\u4e09\u0100\u4e00\u56db\u4e94\u4e8c\u4e09\u56db".toCharArray());
+		assertEquals(7, r1.indexOf("\u4e8c\u4e09\u56db"));
+		assertEquals(3, r1.indexOf("\u0100\u4e00"));
+		assertEquals(-1, r1.indexOf("\u4e00\u0100"));
+
+		// mixed-script text, searched as a flat rope and as a concatenation.
+		final String text = "log: \u65e5\u672c\u8a9e text, \u0440\u0443\u0441\u0441\u043a\u0438\u0439 text, \u65e5\u672c and more";
+		final Rope flat = Rope.BUILDER.build(text.toCharArray());
+		final Rope concatenated = Rope.BUILDER.build(text.substring(0, 12)).append(text.substring(12, 30)).append(text.substring(30));
+		final RopePattern p = RopePattern.compile("\u65e5\u672c");
+		for (final Rope r: new Rope[] { flat, concatenated }) {
+			assertEquals(text.indexOf("\u65e5\u672c"), r.indexOf(p));
+			assertEquals(text.indexOf("\u65e5\u672c", 6), r.indexOf(p, 6));
+			assertEquals(text.indexOf("\u0441\u043a\u0438\u0439 t"), r.indexOf("\u0441\u043a\u0438\u0439 t"));
+			assertEquals(text.indexOf("text, \u65e5"), r.indexOf(RopePattern.compile("text, \u65e5")));
+			assertEquals(-1, r.indexOf(RopePattern.compile("\u672c\u65e5")));
+		}
+		assertEquals("\u65e5\u672c", p.toString());
+		assertEquals(2, p.length());
+	}
+
+	public void testSearcher() {
+		final RopeSearcher s = RopeSearcher.compile("he", "she", "his", "hers", "", "\u65e5\u672c");
+		final Rope r = Rope.BUILDER.build("ushe").append(Rope.BUILDER.build("rs his \u65e5".toCharArray())).append("\u672c she");
+		final List<RopeSearcher.Match> matches = s.findAll(r);
+		final String[] expected = { "1@1", "0@2", "3@2", "2@7", "5@11", "1@14", "0@15" };
+		assertEquals(expected.length, matches.size());
+		for (int j=0; j<expected.length; ++j)
+			assertEquals(expected[j], matches.get(j).toString());
+		assertEquals(4, matches.get(2).getLength());
+
+		// the listener may stop the search early.
+		final int[] count = new int[1];
+		assertFalse(s.search(r, new RopeSearcher.Listener() {
+			public boolean match(final int needle, final int offset) {
+				return ++count[0] < 3;
+			}
+		}));
+		assertEquals(3, count[0]);
+		assertTrue(s.search(r, 3, 10, new RopeSearcher.Listener() {
+			public boolean match(final int needle, final int offset) {
+				assertEquals(2, needle);
+				return true;
+			}
+		}));
+	}
+
+	public void testLastIndexOf() {
+		final String text = "line one\nline two\n\u65e5\u672c line\nthree";
+		final Rope flat = Rope.BUILDER.build(text.toCharArray());
+		final Rope concatenated = Rope.BUILDER.build(text.substring(0, 7)).append(text.substring(7, 20)).append(Rope.BUILDER.build(text.substring(20).toCharArray()));
+		for (final Rope r: new Rope[] { flat, concatenated, Rope.BUILDER.build(text) }) {
+			assertEquals(text.lastIndexOf('\n'), r.lastIndexOf('\n'));
+			for (int j=0; j<text.length(); ++j) {
+				assertEquals(text.lastIndexOf('\n', j), r.lastIndexOf('\n', j));
+				assertEquals(text.lastIndexOf("line", j), r.lastIndexOf("line", j));
+				assertEquals(text.lastIndexOf("\u672c l", j), r.lastIndexOf(RopePattern.compile("\u672c l"), j));
+			}
+			assertEquals(text.lastIndexOf("ne"), r.lastIndexOf("ne"));
+			assertEquals(-1, r.lastIndexOf("xyz"));
+			assertEquals(-1, r.lastIndexOf('z'));
+		}
+		assertEquals(-1, Rope.BUILDER.build("").lastIndexOf('a'));
+		try {
+			flat.lastIndexOf('a', flat.length());
+			fail("Expected IndexOutOfBoundsException");
+		} catch (final IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	public void testBTreeRope() throws IOException {
+		final StringBuilder b = new StringBuilder();
+		for (int j=0; b.length() < 200000; ++j)
+			b.append("line ").append(j).append('\n');
+		Rope r = Rope.BUILDER.buildBTree(b);
+		assertTrue(r instanceof BTreeRope);
+		assertEquals(b.toString(), r.toString());
+		assertTrue(((AbstractRope) r).depth() <= 3);
+
+		// random edits, checked against a string builder.
+		final java.util.Random random = new java.util.Random(42);
+		for (int j=0; j<2000; ++j) {
+			final int start = random.nextInt(b.length());
+			final int end = Math.min(b.length(), start + random.nextInt(3000));
+			switch (random.nextInt(4)) {
+			case 0:
+				final String piece = "<" + j + ">";
+				r = r.insert(start, piece);
+				b.insert(start, piece);
+				break;
+			case 1:
+				r = r.delete(start, end);
+				b.delete(start, end);
+				break;
+			case 2:
+				r = r.insert(start, r.subSequence(start, end));
+				b.insert(start, b.substring(start, end));
+				break;
+			default:
+				r = r.append(r.subSequence(start, end).reverse());
+				b.append(new StringBuilder(b.substring(start, end)).reverse());
+			}
+			assertEquals(b.length(), r.length());
+			if (j % 100 == 0)
+				assertEquals(b.toString(), r.toString());
+		}
+		assertTrue(r instanceof BTreeRope);
+		assertTrue(((AbstractRope) r).depth() <= 4);
+		final String text = b.toString();
+		assertEquals(text, r.toString());
+		assertEquals(text.hashCode(), r.hashCode());
+		for (int j=0; j<text.length(); j += 37)
+			assertEquals(text.charAt(j), r.charAt(j));
+
+		// traversal, search and comparison against other rope types.
+		final RopeCursor c = r.cursor(text.length());
+		for (int j=text.length()-1; j>=0; j -= 13) {
+			c.seek(j + 1);
+			assertEquals(text.charAt(j), c.prevChar());
+		}
+		int k = 0;
+		for (final char ch: r)
+			assertEquals(text.charAt(k++), ch);
+		assertEquals(text.indexOf("line 4000\n"), r.indexOf("line 4000\n"));
+		assertEquals(text.lastIndexOf("line 1"), r.lastIndexOf("line 1"));
+		assertTrue(r.equals(Rope.BUILDER.build(text)));
+		assertTrue(Rope.BUILDER.build(text.toCharArray()).equals(r));
+		assertEquals(0, r.compareTo(Rope.BUILDER.build(text).append("")));
+		assertEquals(text.length(), r.chars().parallel().count());
+		final StringWriter out = new StringWriter();
+		r.write(out, 1000, 50000);
+		assertEquals(text.substring(1000, 51000), out.toString());
+		assertEquals(new StringBuilder(text).reverse().toString(), r.reverse().toString());
+		assertEquals("", r.subSequence(10, 10).toString());
+
+		// long leaves appended to a B-tree rope are split.
+		final Rope longAppend = Rope.BUILDER.buildBTree("abc").append(text);
+		assertTrue(longAppend instanceof BTreeRope);
+		assertEquals(2, ((AbstractRope) longAppend).depth());
+		assertEquals("abc" + text, longAppend.toString());
+		final Rope longPrepend = Rope.BUILDER.build(text).append(Rope.BUILDER.buildBTree("abc"));
+		assertEquals(2, ((AbstractRope) longPrepend).depth());
+		assertEquals(text + "abc", longPrepend.toString());
+	}
+
+	public void testBalancedConcatenation() {
+		// appends, prepends and random inserts of short pieces, checked
+		// against a string builder.
+		final StringBuilder b = new StringBuilder();
+		Rope r = Rope.BUILDER.build("");
+		final java.util.Random random = new java.util.Random(7);
+		for (int j=0; j<20000; ++j) {
+			final String piece = "<" + j + ":abcdefghijklmnop>";
+			switch (random.nextInt(3)) {
+			case 0:
+				r = r.append(piece);
+				b.append(piece);
+				break;
+			case 1:
+				r = Rope.BUILDER.build(piece).append(r);
+				b.insert(0, piece);
+				break;
+			default:
+				final int at = random.nextInt(b.length() + 1);
+				r = r.insert(at, piece);
+				b.insert(at, piece);
+			}
+			if (j % 500 == 0)
+				assertTrue(isAVL(r));
+		}
+		assertTrue(isAVL(r));
+		assertEquals(b.toString(), r.toString());
+		assertTrue(((AbstractRope) r).depth() < 30);
+
+		// a rope built entirely from appends stays balanced too.
+		Rope a = Rope.BUILDER.build("");
+		for (int j=0; j<100000; ++j)
+			a = a.append("<" + j + ":abcdefghijklmnop>");
+		assertTrue(isAVL(a));
+		assertTrue(((AbstractRope) a).depth() < 25);
+	}
+
+	public void testRebalanceKeepsBalancedSubtrees() {
+		// a balanced subtree hung off a long, unbalanced spine.
+		Rope balanced = Rope.BUILDER.build("");
+		for (int j=0; j<1000; ++j)
+			balanced = balanced.append("[" + j + ":abcdefghijklmnop]");
+		final StringBuilder b = new StringBuilder();
+		Rope r = Rope.BUILDER.build("start");
+		b.append("start");
+		for (int j=0; j<100; ++j) {
+			final Rope piece = Rope.BUILDER.build("<" + j + ":abcdefghijklmnop>");
+			r = new ConcatenationRope(r, j == 50 ? new ConcatenationRope(piece, balanced): piece);
+			b.append(piece);
+			if (j == 50)
+				b.append(balanced);
+		}
+		assertTrue(((AbstractRope) r).depth() >= 100);
+
+		final Rope rebalanced = r.rebalance();
+		assertEquals(b.toString(), rebalanced.toString());
+		assertTrue(((AbstractRope) rebalanced).depth() < ((AbstractRope) balanced).depth() + 10);
+		assertTrue(this.contains(rebalanced, balanced));
+		assertEquals("", Rope.BUILDER.build("").rebalance().toString());
+	}
+
+	public void testCompact() {
+		final StringBuilder b = new StringBuilder();
+		Rope r = Rope.BUILDER.build("");
+		for (int j=0; j<100000; ++j) {
+			final char c = (char) ('a' + j % 26);
+			r = r.append(c);
+			b.append(c);
+		}
+		assertTrue(this.leafCount(r) > 100000 / 17);
+
+		final Rope compacted = r.compact();
+		assertEquals(b.toString(), compacted.toString());
+		assertEquals(b.toString().hashCode(), compacted.hashCode());
+		assertTrue(this.leafCount(compacted) <= 100000 / 512 + 1);
+		assertTrue(((AbstractRope) compacted).depth() < 12);
+
+		// rebalance coalesces the short leaves of the unbalanced parts.
+		Rope spine = Rope.BUILDER.build("0123456789abcdefghij");
+		for (int j=0; j<120; ++j)
+			spine = new ConcatenationRope(spine, Rope.BUILDER.build("<" + j + ":abcdefghijklmnop>"));
+		final Rope rebalanced = spine.rebalance();
+		assertEquals(spine.toString(), rebalanced.toString());
+		assertTrue(this.leafCount(rebalanced) <= 4);
+
+		final Rope flat = Rope.BUILDER.build("flat");
+		assertSame(flat, flat.compact());
+	}
+
+	private int leafCount(final Rope r) {
+		if (!(r instanceof ConcatenationRope))
+			return 1;
+		final ConcatenationRope c = (ConcatenationRope) r;
+		return this.leafCount(c.getLeft()) + this.leafCount(c.getRight());
+	}
+
+	private boolean hasByteLeaves(final Rope r) {
+		if (!(r instanceof ConcatenationRope))
+			return r instanceof FlatByteArrayRope;
+		final ConcatenationRope c = (ConcatenationRope) r;
+		return this.hasByteLeaves(c.getLeft()) && this.hasByteLeaves(c.getRight());
+	}
+
+	private Rope deepRope(final RopeBuilder builder, final String root) {
+		Rope deep = builder.build(root);
+		for (int j=0; j<100; ++j)
+			deep = new ConcatenationRope(deep, builder.build("<" + j + ":abcdefghijklmnop>"));
+		return deep;
+	}
+
+	public void testAutoRebalance() {
+		final StringBuilder b = new StringBuilder("root");
+		for (int j=0; j<100; ++j)
+			b.append("<" + j + ":abcdefghijklmnop>");
+
+		// synchronous by default.
+		Rope r = this.deepRope(Rope.BUILDER, "root").append("!");
+		assertEquals(b + "!", r.toString());
+		assertTrue(((AbstractRope) r).depth() < 20);
+
+		// in the background when enabled, with the result picked up by
+		// later edits. Rebalances are queued here and run by hand.
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		final RopeBuilder builder = new RopeBuilder(RopePolicy.DEFAULT.withBackgroundRebalance(true).withRebalanceExecutor(new Executor() {
+			public void execute(final Runnable command) {
+				tasks.add(command);
+			}
+		}));
+		final Rope deep = this.deepRope(builder, "root");
+		Rope other = this.deepRope(builder, "other");
+		r = deep.append("?");
+		b.append("?");
+		assertEquals(b.toString(), r.toString());
+		assertTrue(((AbstractRope) r).depth() > RopePolicy.DEFAULT.getMaxDepth());
+		assertEquals(1, tasks.size());
+
+		// ropes sharing deep nodes with a queued rope are not queued,
+		// but other deep ropes are.
+		r = r.append("?");
+		b.append("?");
+		assertTrue(((AbstractRope) r).depth() > RopePolicy.DEFAULT.getMaxDepth());
+		assertEquals(1, tasks.size());
+		other = other.append("?");
+		assertEquals(2, tasks.size());
+
+		tasks.get(0).run();
+		r = r.append("?");
+		b.append("?");
+		assertEquals(b.toString(), r.toString());
+		assertTrue(((AbstractRope) r).depth() < 20);
+		assertEquals(2, tasks.size());
+		tasks.get(1).run();
+		assertTrue(((AbstractRope) other.append("?")).depth() < 20);
+
+		// the policy belongs to the builder.
+		assertTrue(((AbstractRope) this.deepRope(Rope.BUILDER, "root").append("!")).depth() < 20);
+		assertEquals(2, tasks.size());
+	}
+
+	public void testPolicy() {
+		assertSame(RopePolicy.DEFAULT, Rope.BUILDER.getPolicy());
+		assertEquals(17, RopePolicy.DEFAULT.getCombineLength());
+		assertEquals(96, RopePolicy.DEFAULT.getMaxDepth());
+		final RopePolicy policy = RopePolicy.EDITOR.withCombineLength(100).withMaxDepth(20).withBackgroundRebalance(false);
+		assertEquals(100, policy.getCombineLength());
+		assertEquals(20, policy.getMaxDepth());
+		assertEquals(RopePolicy.EDITOR.getLeafLength(), policy.getLeafLength());
+		assertTrue(RopePolicy.EDITOR.isBackgroundRebalance() && !policy.isBackgroundRebalance());
+		assertEquals(64, RopePolicy.EDITOR.getCombineLength());
+		try {
+			RopePolicy.DEFAULT.withLeafLength(4);
+			fail("Expected IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+
+		final char[] digits = "0123456789012345678901234567890123456789".toCharArray();
+		final Rope flat = Rope.BUILDER.build(digits);
+		assertTrue(flat.subSequence(0, 20) instanceof SubstringRope);
+		final RopeBuilder builder = new RopeBuilder(policy);
+		assertSame(policy, builder.getPolicy());
+		assertSame(RopePolicy.DEFAULT, Rope.BUILDER.getPolicy());
+		assertTrue(builder.build(digits).subSequence(0, 20) instanceof FlatByteArrayRope);
+		assertSame(policy, ((AbstractRope) builder.build(digits).subSequence(0, 20)).getPolicy());
+		try {
+			new RopeBuilder(null);
+			fail("Expected NullPointerException");
+		} catch (final NullPointerException e) {
+			// expected
+		}
+
+		// short pieces are combined up to the combine length.
+		Rope r = builder.build("");
+		for (int j=0; j<1000; ++j)
+			r = r.append("abcdefghij");
+		assertEquals(1000 * 10, r.length());
+		assertTrue(this.leafCount(r) <= 1000 / 8);
+		assertEquals('j', r.charAt(9999));
+		assertSame(policy, ((AbstractRope) r).getPolicy());
+		r = Rope.BUILDER.build("");
+		for (int j=0; j<1000; ++j)
+			r = r.append("abcdefghij");
+		assertTrue(this.leafCount(r) > 1000 / 8);
+
+		// rebalanced beyond the maximum depth.
+		Rope deep = builder.build("root");
+		for (int j=0; j<30; ++j)
+			deep = new ConcatenationRope(deep, builder.build("<" + j + ":abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnop>"));
+		assertTrue(((AbstractRope) deep.append("0123456789abcdefghij")).depth() <= 20);
+
+		// B-tree leaves follow the leaf length: 4096 characters fill 4
+		// leaves by default, and 64 leaves, more than a node holds, with a
+		// leaf length of 64.
+		final StringBuilder text = new StringBuilder();
+		while (text.length() < 4096)
+			text.append("abcdefghijklmnop");
+		final RopeBuilder small = new RopeBuilder(RopePolicy.DEFAULT.withLeafLength(64));
+		assertEquals(1, ((AbstractRope) Rope.BUILDER.buildBTree(text)).depth());
+		assertEquals(2, ((AbstractRope) small.buildBTree(text)).depth());
+		final Rope appended = small.buildBTree("abc").append(text.toString());
+		assertEquals(2, ((AbstractRope) appended).depth());
+		assertEquals("abc" + text, appended.toString());
+	}
+
+	private boolean contains(final Rope r, final Rope node) {
+		if (r == node)
+			return true;
+		if (!(r instanceof ConcatenationRope))
+			return false;
+		final ConcatenationRope c = (ConcatenationRope) r;
+		return this.contains(c.getLeft(), node) || this.contains(c.getRight(), node);
+	}
+
+	private boolean isAVL(final Rope r) {
+		if (!(r instanceof ConcatenationRope))
+			return true;
+		final ConcatenationRope c = (ConcatenationRope) r;
+		final AbstractRope left = (AbstractRope) c.getLeft(), right = (AbstractRope) c.getRight();
+		return Math.abs(left.depth() - right.depth()) <= 1 && this.isAVL(left) && this.isAVL(right);
+	}
+
+	private String randomText(final java.util.Random random, final int length, final int... codePoints) {
+		final StringBuilder b = new StringBuilder();
+		for (int j=0; j<length; ++j)
+			b.appendCodePoint(codePoints[random.nextInt(codePoints.length)]);
+		return b.toString();
+	}
+
+	/**
+	 * Returns ropes of each shape holding the text: a flat sequence, a flat
+	 * array, a rope appended to in short pieces, a B-tree and a substring
+	 * starting after a lone low surrogate, in that order.
+	 */
+	private Rope[] ropeVariants(final String text) {
+		Rope edited = Rope.BUILDER.build(text.substring(0, 1001));
+		for (int j=1001; j<text.length(); j += 37)
+			edited = edited.append(Rope.BUILDER.build(text.substring(j, Math.min(text.length(), j + 37)).toCharArray()));
+		return new Rope[] {
+			Rope.BUILDER.build(text),
+			Rope.BUILDER.build(text.toCharArray()),
+			edited,
+			Rope.BUILDER.buildBTree(text),
+			Rope.BUILDER.build(("\uDE00" + text + "x").toCharArray()).subSequence(1, text.length() + 1),
+		};
+	}
+
+	public void testLines() {
+		final String text = this.randomText(new java.util.Random(3), 40000, "abcdefghijklmnopqrstuvwxyz\n".chars().toArray());
+		final Rope[] variants = this.ropeVariants(text);
+		final Rope edited = variants[2];
+		final Rope[] ropes = Arrays.copyOf(variants, variants.length + 1);
+		ropes[variants.length] = Rope.BUILDER.build(new StringBuilder(text).reverse().toString().toCharArray()).reverse();
+		final String[] lines = text.split("\n", -1);
+		for (final Rope r: ropes) {
+			assertEquals(text, r.toString());
+			assertEquals(lines.length, r.lineCount());
+			int start = 0;
+			for (int j=0; j<lines.length; ++j) {
+				assertEquals(start, r.lineStartOffset(j));
+				assertEquals(lines[j], r.line(j).toString());
+				assertEquals(j, r.lineOf(start));
+				assertEquals(j, r.lineOf(start + lines[j].length()));
+				start += lines[j].length() + 1;
+			}
+			assertEquals(lines.length - 1, r.lineOf(r.length()));
+			try {
+				r.line(lines.length);
+				fail("Expected IndexOutOfBoundsException");
+			} catch (final IndexOutOfBoundsException e) {
+				// expected
+			}
+		}
+
+		// edits keep the index consistent.
+		final Rope r = edited.delete(100, 5000).insert(50, "one\ntwo\n");
+		final String s = text.substring(0, 50) + "one\ntwo\n" + text.substring(50, 100) + text.substring(5000);
+		assertEquals(s.split("\n", -1).length, r.lineCount());
+		assertEquals("two", r.line(r.lineOf(54)).toString());
+		assertEquals(1, Rope.BUILDER.build("").lineCount());
+		assertEquals("", Rope.BUILDER.build("").line(0).toString());
+		assertEquals(2, Rope.BUILDER.build("a\n").lineCount());
+		assertEquals("", Rope.BUILDER.build("a\n").line(1).toString());
+	}
+
+	public void testCodePoints() {
+		// pairs, lone surrogates of both kinds and single characters.
+		final java.util.Random random = new java.util.Random(5);
+		final String text = this.randomText(random, 5000, 'a', 'b', 'c', 'd', 'e', 'f', 0x1F600, 0x1F60A, 0x1F64F, 0xD83D, 0xDE00);
+		final Rope[] ropes = this.ropeVariants(text);
+		final Rope edited = ropes[2];
+		for (final Rope r: ropes) {
+			assertEquals(text, r.toString());
+			assertEquals(text.codePointCount(0, text.length()), r.codePointCount(0, r.length()));
+			for (int j=0; j<200; ++j) {
+				final int x = random.nextInt(text.length() + 1), y = random.nextInt(text.length() + 1);
+				final int begin = Math.min(x, y), end = Math.max(x, y);
+				assertEquals(text.codePointCount(begin, end), r.codePointCount(begin, end));
+				if (begin < text.length())
+					assertEquals(text.codePointAt(begin), r.codePointAt(begin));
+				final int forward = random.nextInt(text.codePointCount(begin, text.length()) + 1);
+				assertEquals(text.offsetByCodePoints(begin, forward), r.offsetByCodePoints(begin, forward));
+				final int backward = random.nextInt(text.codePointCount(0, end) + 1);
+				assertEquals(text.offsetByCodePoints(end, -backward), r.offsetByCodePoints(end, -backward));
+			}
+			try {
+				r.offsetByCodePoints(0, text.codePointCount(0, text.length()) + 1);
+				fail("Expected IndexOutOfBoundsException");
+			} catch (final IndexOutOfBoundsException e) {
+				// expected
+			}
+			assertEquals(new StringBuilder(text).reverse().toString(), r.reverse().toString());
+		}
+		// reversal pairs up a lone low surrogate followed by a lone high one.
+		final String reversed = new StringBuilder(text).reverse().toString();
+		assertEquals(new StringBuilder(reversed).reverse().toString(), edited.reverse().reverse().toString());
+
+		// a pair split between two leaves is one code point.
+		final Rope split = Rope.BUILDER.build("ab\uD83D".toCharArray()).append(Rope.BUILDER.build("\uDE00cd".toCharArray()));
+		assertEquals(5, split.codePointCount(0, split.length()));
+		assertEquals(0x1F600, split.codePointAt(2));
+		assertEquals(4, split.offsetByCodePoints(0, 3));
+		assertEquals("dc\uD83D\uDE00ba", split.reverse().toString());
+
+		// reversing a leaf wraps it, and the wrapper keeps pairs in order.
+		final Rope reverse = Rope.BUILDER.build(text.toCharArray()).reverse();
+		assertTrue(reverse instanceof ReverseRope);
+		final RopeCursor cursor = reverse.cursor(reverse.length());
+		for (int j=reversed.length() - 1; j>=0; --j) {
+			assertEquals(reversed.charAt(j), reverse.charAt(j));
+			assertEquals(reversed.charAt(j), cursor.prevChar());
+		}
+		for (int j=0; j<200; ++j) {
+			final int x = random.nextInt(text.length() + 1), y = random.nextInt(text.length() + 1);
+			final int begin = Math.min(x, y), end = Math.max(x, y);
+			final char[] chars = new char[end - begin];
+			reverse.getChars(begin, end, chars, 0);
+			assertEquals(reversed.substring(begin, end), new String(chars));
+			assertEquals(reversed.substring(begin, end), reverse.subSequence(begin, end).toString());
+		}
+
+		// slicing a reversed B-tree rope through a pair keeps its leaves flat.
+		final StringBuilder smiles = new StringBuilder();
+		for (int j=0; j<100; ++j)
+			smiles.append("ab\uD83D\uDE00");
+		final String slice = new StringBuilder(smiles).reverse().substring(1, 21);
+		final Rope sliced = Rope.BUILDER.buildBTree(smiles).reverse().subSequence(1, 21);
+		int k = 0;
+		for (final char c: sliced)
+			assertEquals(slice.charAt(k++), c);
+		assertEquals(slice.length(), k);
+		final RopeCursor c = sliced.cursor();
+		while (c.hasNext())
+			assertEquals(slice.charAt(c.position()), c.nextChar());
+	}
+
 	public void testInsert() {
 		final Rope r1 = Rope.BUILDER.build("alpha");
 		Assert.assertEquals("betaalpha", r1.insert(0, "beta").toString());
@@ -337,6 +958,58 @@ public class RopeTest extends TestCase {
 		assertTrue(r2.compareTo(s2) == 0);
 	}
 	
+	public void testSharedStructureComparison() {
+		// versions of a document that share most of their leaves.
+		final StringBuilder b = new StringBuilder();
+		Rope base = Rope.BUILDER.build("");
+		for (int j=0; j<300; ++j) {
+			final String piece = "paragraph " + j + "\n";
+			b.append(piece);
+			base = base.append(j % 2 == 0 ? Rope.BUILDER.build(piece.toCharArray()): Rope.BUILDER.build(piece));
+		}
+		final String text = b.toString();
+		final Rope edited = base.insert(2000, "x").delete(2000, 2001);
+		final Rope changed = base.delete(2000, 2001).insert(2000, "!");
+		final Rope copy = Rope.BUILDER.build(text.toCharArray());
+
+		assertTrue(edited.equals(base));
+		assertTrue(base.equals(copy));
+		assertTrue(copy.equals(edited));
+		assertEquals(0, edited.compareTo(base));
+		assertEquals(0, copy.compareTo(edited));
+		assertFalse(changed.equals(base));
+		assertEquals('!' - text.charAt(2000), changed.compareTo(base));
+		assertEquals(text.charAt(2000) - '!', copy.compareTo(changed));
+		assertEquals(text.substring(5, 100).compareTo(text.substring(5, 90)), base.subSequence(5, 100).compareTo(edited.subSequence(5, 90)));
+		assertTrue(base.reverse().equals(copy.reverse()));
+		assertTrue(base.subSequence(1500, 2500).equals(Rope.BUILDER.build(text.substring(1500, 2500))));
+	}
+
+	public void testCommonPrefixAndSuffix() {
+		final Rope base = Rope.BUILDER.build("<p>The quick ").append(Rope.BUILDER.build("brown fox".toCharArray())).append(" jumped.</p>");
+		final Rope edited = base.subSequence(0, 17).append("m").append(base.subSequence(18, base.length()));
+
+		assertEquals(17, base.mismatch(edited));
+		assertEquals(17, base.commonPrefixLength(edited));
+		assertEquals(base.length() - 18, base.commonSuffixLength(edited));
+		assertEquals(-1, base.mismatch(base.subSequence(0, 10).append(base.subSequence(10, base.length()))));
+		assertEquals(base.length(), base.commonPrefixLength(base.toString()));
+		assertEquals(base.length(), base.commonSuffixLength(base));
+
+		// one a prefix or suffix of the other.
+		assertEquals(5, base.mismatch("<p>Th"));
+		assertEquals(7, base.commonPrefixLength("<p>The slow"));
+		assertEquals(4, base.commonSuffixLength("ed.</p>".substring(3)));
+		assertEquals(4, Rope.BUILDER.build("</p>").commonSuffixLength(base));
+		assertEquals(0, base.commonPrefixLength(""));
+		assertEquals(0, base.commonSuffixLength("x"));
+
+		assertTrue(edited.startsWith("brow", 13));
+		assertFalse(edited.startsWith("brown", 13));
+		assertTrue(edited.endsWith("</p>"));
+		assertTrue(edited.endsWith("fox", 12));
+	}
+
 	public void testToString() {
 		String phrase = "The quick brown fox jumped over the lazy brown dog. Boy am I glad the dog was asleep.";
 		final Rope r1 = Rope.BUILDER.build(phrase);
@@ -455,6 +1128,342 @@ public class RopeTest extends TestCase {
 		
 	}
 
+	public void testCursor() {
+		FlatCharSequenceRope r1 = new FlatCharSequenceRope("01234");
+		ReverseRope r2 = new ReverseRope(r1);
+		SubstringRope r3 = new SubstringRope(r1, 0, 3);
+		FlatCharArrayRope r4 = new FlatCharArrayRope("abc".toCharArray());
+		ConcatenationRope r5 = new ConcatenationRope(new ConcatenationRope(r1,r2),new ConcatenationRope(r3, r4));	//0123443210012abc
+		String s5 = "0123443210012abc";
+
+		Rope[] ropes = {r1, r2, r3, r4, r5, r5.reverse()};
+		for (Rope r: ropes) {
+			String s = r.toString();
+			RopeCursor c = r.cursor();
+			for (int j=0; j<s.length(); ++j) {
+				assertEquals(j, c.position());
+				assertTrue(c.hasNext());
+				assertEquals(s.charAt(j), c.nextChar());
+			}
+			assertFalse(c.hasNext());
+			for (int j=s.length()-1; j>=0; --j) {
+				assertTrue(c.hasPrevious());
+				assertEquals(s.charAt(j), c.prevChar());
+				assertEquals(j, c.position());
+			}
+			assertFalse(c.hasPrevious());
+			try {
+				c.prevChar();
+				fail("Expected IndexOutOfBoundsException");
+			} catch (IndexOutOfBoundsException e) {
+				// success
+			}
+		}
+
+		RopeCursor c = r5.cursor(5);
+		assertEquals('4', c.nextChar());
+		assertEquals('3', c.nextChar());
+		c.seek(2);
+		assertEquals('1', c.prevChar());
+		c.seek(s5.length());
+		assertFalse(c.hasNext());
+		assertEquals('c', c.prevChar());
+		c.seek(12);
+		assertEquals('1', c.prevChar());
+		assertEquals('1', c.nextChar());
+		assertEquals('2', c.nextChar());
+		assertEquals('a', c.nextChar());
+
+		assertFalse(Rope.BUILDER.build("").cursor().hasNext());
+		assertFalse(new ConcatenationRope(Rope.BUILDER.build(""), Rope.BUILDER.build("")).cursor().hasNext());
+	}
+
+	public void testGetChars() {
+		FlatCharSequenceRope r1 = new FlatCharSequenceRope("01234");
+		ReverseRope r2 = new ReverseRope(r1);
+		SubstringRope r3 = new SubstringRope(r1, 0, 3);
+		FlatCharArrayRope r4 = new FlatCharArrayRope("abc".toCharArray());
+		Rope r5 = new ConcatenationRope(new ConcatenationRope(r1,r2),new ConcatenationRope(r3, r4));	//0123443210012abc
+		Rope r6 = new FlatCharSequenceRope(new StringBuilder("xyz")).append(Rope.BUILDER.build("0123456789").padEnd(20, '~'));
+
+		Rope[] ropes = {r1, r2, r3, r4, r5, r5.reverse(), r6};
+		for (Rope r: ropes) {
+			String s = fromRope(r, 0, r.length());
+			assertEquals(s, r.toString());
+			for (int start=0; start<=r.length(); ++start) {
+				for (int end=start; end<=r.length(); ++end) {
+					char[] dst = new char[end - start + 2];
+					r.getChars(start, end, dst, 1);
+					assertEquals(s.substring(start, end), new String(dst, 1, end - start));
+					assertEquals(0, dst[0]);
+					assertEquals(0, dst[dst.length - 1]);
+				}
+			}
+		}
+		try {
+			r5.getChars(3, 2, new char[10], 0);
+			fail("Expected IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+		try {
+			r5.getChars(0, 10, new char[10], 1);
+			fail("Expected IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// success
+		}
+	}
+
+	public void testForEachChunk() {
+		FlatCharSequenceRope r1 = new FlatCharSequenceRope("01234");
+		ReverseRope r2 = new ReverseRope(r1);
+		SubstringRope r3 = new SubstringRope(r1, 0, 3);
+		FlatCharArrayRope r4 = new FlatCharArrayRope("abc".toCharArray());
+		Rope r5 = new ConcatenationRope(new ConcatenationRope(r1,r2),new ConcatenationRope(r3, r4));	//0123443210012abc
+
+		Rope[] ropes = {r1, r2, r3, r4, r5, r5.reverse()};
+		for (Rope r: ropes) {
+			String s = r.toString();
+			for (int start=0; start<=r.length(); ++start) {
+				for (int end=start; end<=r.length(); ++end) {
+					final StringBuilder b = new StringBuilder();
+					assertTrue(r.forEachChunk(start, end, new ChunkConsumer() {
+						public boolean accept(char[] chunk, int offset, int length) {
+							assertTrue(length > 0);
+							b.append(chunk, offset, length);
+							return true;
+						}
+						public boolean accept(CharSequence chunk, int offset, int length) {
+							assertTrue(length > 0);
+							b.append(chunk, offset, offset + length);
+							return true;
+						}
+					}));
+					assertEquals(s.substring(start, end), b.toString());
+				}
+			}
+		}
+
+		final int[] count = new int[1];
+		assertFalse(r5.forEachChunk(new ChunkConsumer() {
+			public boolean accept(char[] chunk, int offset, int length) {
+				return ++count[0] < 2;
+			}
+			public boolean accept(CharSequence chunk, int offset, int length) {
+				return ++count[0] < 2;
+			}
+		}));
+		assertEquals(2, count[0]);
+	}
+
+	public void testLatin1() throws IOException {
+		final StringBuilder b = new StringBuilder();
+		for (int j=0; j<3000; ++j)
+			b.append((char) (j % 7 == 0 ? 0xe0 + j % 32: 'a' + j % 26));
+		final String text = b.toString();
+
+		final Rope latin1 = Rope.BUILDER.build(text.toCharArray());
+		assertTrue(latin1 instanceof FlatByteArrayRope);
+		assertTrue(Rope.BUILDER.build("caf\u00e9 \u20ac".toCharArray()) instanceof FlatCharArrayRope);
+		assertEquals(text, latin1.toString());
+		assertEquals(text.hashCode(), latin1.hashCode());
+		assertEquals(Rope.BUILDER.build(text), latin1);
+		assertEquals('\u00e0', latin1.charAt(0));
+		assertEquals(text.indexOf('\u00e7'), latin1.indexOf('\u00e7'));
+		assertEquals(text.lastIndexOf('\u00e7'), latin1.lastIndexOf('\u00e7'));
+		assertEquals(-1, latin1.indexOf('\u01e7'));
+		assertEquals(text.indexOf("z\u00f0"), latin1.indexOf("z\u00f0"));
+		assertEquals(text.substring(100, 2000), latin1.subSequence(100, 2000).toString());
+		assertEquals(new StringBuilder(text).reverse().toString(), latin1.reverse().toString());
+		final StringWriter out = new StringWriter();
+		latin1.write(out, 5, 2500);
+		assertEquals(text.substring(5, 2505), out.toString());
+		final StringBuilder chunks = new StringBuilder();
+		latin1.forEachChunk(new ChunkConsumer() {
+			public boolean accept(char[] chunk, int offset, int length) {
+				chunks.append(chunk, offset, length);
+				return true;
+			}
+			public boolean accept(CharSequence chunk, int offset, int length) {
+				chunks.append(chunk, offset, offset + length);
+				return true;
+			}
+		});
+		assertEquals(text, chunks.toString());
+		try {
+			new FlatByteArrayRope("\u20ac".toCharArray(), 0, 1);
+			fail("Expected IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+
+		// coalesced leaves are stored as bytes when they fit.
+		Rope r = Rope.BUILDER.build("");
+		for (int j=0; j<text.length(); ++j)
+			r = r.append(text.charAt(j));
+		r = r.compact();
+		assertEquals(text, r.toString());
+		assertEquals(0, latin1.compareTo(r));
+		assertTrue(Rope.BUILDER.buildBTree(text).equals(r));
+		assertTrue(this.hasByteLeaves(r));
+		assertTrue(this.hasByteLeaves(Rope.BUILDER.build("abcdefgh").append(Rope.BUILDER.build("ij"))));
+	}
+
+	public void testUtf8() throws IOException {
+		final java.util.Random random = new java.util.Random(11);
+		final String text = this.randomText(random, 5000, 'a', 'z', '\n', 0xe9, 0x3b1, 0x20ac, 0x4e2d, 0x1f600);
+		final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+		final Rope r = Rope.BUILDER.build(bytes, StandardCharsets.UTF_8);
+		assertTrue(r instanceof FlatUtf8Rope);
+		assertEquals(text.length(), r.length());
+		assertEquals(text, r.toString());
+		assertEquals(text.hashCode(), r.hashCode());
+		assertEquals(Rope.BUILDER.build(text), r);
+		for (int j=0; j<1000; ++j) {
+			final int i = random.nextInt(text.length());
+			assertEquals(text.charAt(i), r.charAt(i));
+		}
+		final RopeCursor cursor = r.cursor(100);
+		for (int j=100; j<200; ++j)
+			assertEquals(text.charAt(j), cursor.nextChar());
+		for (int j=199; j>=50; --j)
+			assertEquals(text.charAt(j), cursor.prevChar());
+		final char[] reversed = new char[text.length()];
+		int n = reversed.length;
+		for (final Iterator<Character> i=r.reverseIterator(); i.hasNext(); )
+			reversed[--n] = i.next();
+		assertEquals(text, new String(reversed));
+		assertEquals(text.substring(333, 4000), r.subSequence(333, 4000).toString());
+		assertEquals(text.indexOf("\u20ac\u4e2d"), r.indexOf("\u20ac\u4e2d"));
+		assertEquals(text.lastIndexOf('\u03b1'), r.lastIndexOf('\u03b1'));
+		assertEquals(text.codePointCount(0, text.length()), r.codePointCount(0, r.length()));
+		assertEquals(text.split("\n", -1).length, r.lineCount());
+
+		// the bytes are written back without re-encoding.
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		r.write(out, StandardCharsets.UTF_8);
+		assertTrue(Arrays.equals(bytes, out.toByteArray()));
+		out = new ByteArrayOutputStream();
+		r.write(out, StandardCharsets.UTF_16BE);
+		assertTrue(Arrays.equals(text.getBytes(StandardCharsets.UTF_16BE), out.toByteArray()));
+
+		// a surrogate pair split between leaves is encoded as one code point.
+		final Rope split = Rope.BUILDER.build("ab\uD83D".toCharArray())
+			.append(Rope.BUILDER.build("\uDE00c".toCharArray()))
+			.append(Rope.BUILDER.build("d\u00e9".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+		out = new ByteArrayOutputStream();
+		split.write(out, StandardCharsets.UTF_8);
+		assertEquals("ab\uD83D\uDE00cd\u00e9", new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+		// unpaired surrogates before a UTF-8 leaf and at the end are replaced in place.
+		final String utf8 = text.substring(0, 40).replace('\uD83D', 'x').replace('\uDE00', 'y');
+		final Rope lone = Rope.BUILDER.build("a\uD83D".toCharArray())
+			.append(Rope.BUILDER.build(utf8.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8))
+			.append(Rope.BUILDER.build("c\uD83D".toCharArray()));
+		out = new ByteArrayOutputStream();
+		lone.write(out, StandardCharsets.UTF_8);
+		assertTrue(Arrays.equals(("a\uD83D" + utf8 + "c\uD83D").getBytes(StandardCharsets.UTF_8), out.toByteArray()));
+		final Rope empty = new ConcatenationRope(new ConcatenationRope(Rope.BUILDER.build("a\uD83D"),
+			Rope.BUILDER.build(new byte[0], StandardCharsets.UTF_8)), Rope.BUILDER.build("\uDE00b"));
+		out = new ByteArrayOutputStream();
+		empty.write(out, StandardCharsets.UTF_8);
+		assertEquals("a\uD83D\uDE00b", new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+		// malformed input is decoded with replacement characters.
+		final byte[] malformed = { 'a', (byte) 0xc0, (byte) 0xaf, 'b', (byte) 0xed, (byte) 0xa0, (byte) 0x80, (byte) 0xe2 };
+		assertEquals(new String(malformed, StandardCharsets.UTF_8), Rope.BUILDER.build(malformed, StandardCharsets.UTF_8).toString());
+		final byte[] latin1 = { 'a', (byte) 0xe9, (byte) 0xff };
+		final Rope l = Rope.BUILDER.build(latin1, StandardCharsets.ISO_8859_1);
+		assertEquals("a\u00e9\u00ff", l.toString());
+		out = new ByteArrayOutputStream();
+		l.write(out, StandardCharsets.ISO_8859_1);
+		assertTrue(Arrays.equals(latin1, out.toByteArray()));
+		assertEquals("", Rope.BUILDER.build(new byte[0], StandardCharsets.UTF_8).toString());
+	}
+
+	public void testMap() throws IOException {
+		final java.util.Random random = new java.util.Random(13);
+		final String text = this.randomText(random, 300000, 'a', 'z', '\n', 0xe9, 0x20ac, 0x1f600);
+		final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+		final Path path = Files.createTempFile("rope", ".txt");
+		try {
+			Files.write(path, bytes);
+			final Rope r = Rope.BUILDER.map(path, StandardCharsets.UTF_8);
+			assertTrue(r instanceof ConcatenationRope);
+			assertTrue(this.leafCount(r) >= bytes.length / 65536);
+			assertEquals(text, r.toString());
+			for (int j=0; j<1000; ++j) {
+				final int i = random.nextInt(text.length());
+				assertEquals(text.charAt(i), r.charAt(i));
+			}
+			final Rope edited = r.delete(1000, 200000).insert(500, "inserted");
+			assertEquals(text.substring(0, 500) + "inserted" + text.substring(500, 1000) + text.substring(200000), edited.toString());
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			r.write(out, StandardCharsets.UTF_8);
+			assertTrue(Arrays.equals(bytes, out.toByteArray()));
+
+			Files.write(path, text.getBytes(StandardCharsets.UTF_16LE));
+			assertEquals(text, Rope.BUILDER.map(path, StandardCharsets.UTF_16LE).toString());
+			Files.write(path, new byte[0]);
+			assertEquals(0, Rope.BUILDER.map(path, StandardCharsets.UTF_8).length());
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	public void testRead() throws IOException {
+		final String text = this.randomText(new java.util.Random(17), 100000, 'a', 'z', '\n', 0xe9, 0x20ac, 0x1f600);
+		final int leafLength = Rope.BUILDER.getPolicy().getLeafLength();
+
+		// a reader returning a few characters at a time still fills whole leaves.
+		final Reader trickle = new StringReader(text) {
+			@Override
+			public int read(final char[] cbuf, final int off, final int len) throws IOException {
+				return super.read(cbuf, off, Math.min(len, 7));
+			}
+		};
+		final Rope r = Rope.BUILDER.read(trickle);
+		assertEquals(text, r.toString());
+		assertEquals((text.length() + leafLength - 1) / leafLength, this.leafCount(r));
+		assertTrue(this.isAVL(r));
+		assertEquals(text.codePointCount(0, text.length()), r.codePointCount(0, r.length()));
+
+		final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		assertEquals(text, Rope.BUILDER.read(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8).toString());
+		assertEquals(text, Rope.BUILDER.read(Channels.newChannel(new ByteArrayInputStream(bytes)), StandardCharsets.UTF_8).toString());
+		final byte[] malformed = { 'a', (byte) 0xc0, 'b' };
+		assertEquals(new String(malformed, StandardCharsets.UTF_8),
+			Rope.BUILDER.read(Channels.newChannel(new ByteArrayInputStream(malformed)), StandardCharsets.UTF_8).toString());
+		assertEquals(0, Rope.BUILDER.read(new StringReader("")).length());
+	}
+
+	public void testChars() {
+		Rope r = Rope.BUILDER.build("");
+		StringBuilder b = new StringBuilder();
+		for (int j=0; j<500; ++j) {
+			String s = "line " + j + " of the quick brown fox\n";
+			r = r.append(s);
+			b.append(s);
+		}
+		r = r.rebalance();
+		String s = b.toString();
+
+		assertEquals(s.length(), r.chars().count());
+		assertEquals(s.chars().sum(), r.chars().sum());
+		assertEquals(s.chars().sum(), r.chars().parallel().sum());
+		assertEquals(s.chars().filter(c -> c == '\n').count(), r.chars().parallel().filter(c -> c == '\n').count());
+		assertEquals(s, r.chars().parallel().collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append).toString());
+		assertEquals(s.substring(0, 7), r.chars().limit(7).collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append).toString());
+
+		Spliterator.OfInt x = r.chars().spliterator();
+		assertTrue(x.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED | Spliterator.IMMUTABLE));
+		Spliterator.OfInt y = x.trySplit();
+		assertNotNull(y);
+		assertEquals(s.length(), x.estimateSize() + y.estimateSize());
+	}
+
 	public void testSerialize() {
 		FlatCharSequenceRope r1 = new FlatCharSequenceRope("01234");
 		ReverseRope r2 = new ReverseRope(r1);
@@ -559,6 +1568,41 @@ public class RopeTest extends TestCase {
 		}
 	}
 
+	public void testFinger() {
+		// a deep, unbalanced rope.
+		Rope r = Rope.BUILDER.build("");
+		final StringBuilder b = new StringBuilder();
+		for (int j=0; j<60; ++j) {
+			r = new ConcatenationRope(r, Rope.BUILDER.build("<" + j + ">"));
+			b.append("<" + j + ">");
+		}
+		final String text = b.toString();
+		final RopeFinger f = new RopeFinger(r);
+		assertEquals(text.length(), f.length());
+		// forward, backward and local back-tracking.
+		for (int j=0; j<text.length(); ++j)
+			assertEquals(text.charAt(j), f.charAt(j));
+		for (int j=text.length()-1; j>=0; --j)
+			assertEquals(text.charAt(j), f.charAt(j));
+		for (int j=0; j+5<text.length(); j += 3)
+			for (int k=j+5; k>=j; --k)
+				assertEquals(text.charAt(k), f.charAt(k));
+		assertEquals(text.substring(3, 40), f.subSequence(3, 40).toString());
+		assertEquals(text, f.toString());
+		try {
+			f.charAt(text.length());
+			fail("Expected IndexOutOfBoundsException");
+		} catch (final IndexOutOfBoundsException e) {
+			// expected
+		}
+
+		final Matcher m = Pattern.compile("<(\\d)\\1>").matcher(f);
+		assertTrue(m.find());
+		assertEquals("<11>", m.group());
+		assertTrue(m.find());
+		assertEquals("<22>", m.group());
+	}
+
 	public void testStartsEndsWith() {
 		final Rope r = Rope.BUILDER.build("Hello sir, how do you do?");
 		assertTrue(r.startsWith(""));